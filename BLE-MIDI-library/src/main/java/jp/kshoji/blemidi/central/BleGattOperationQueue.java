@@ -0,0 +1,261 @@
+package jp.kshoji.blemidi.central;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+import static jp.kshoji.blemidi.util.Constants.TAG;
+
+/**
+ * Serializes GATT operations across all devices<br />
+ * The Bluetooth stack processes one GATT operation at a time, so the operations issued at once for several devices fail or get stuck.
+ * The operations are executed one by one on the handler's thread, the next operation starts when the completion callback has been received,
+ * or when the timeout has been expired. The failed operations are retried.
+ *
+ * @author K.Shoji
+ */
+final class BleGattOperationQueue {
+    static final int TYPE_CONNECT = 0;
+    static final int TYPE_DISCOVER_SERVICES = 1;
+    static final int TYPE_WRITE_DESCRIPTOR = 2;
+    static final int TYPE_READ_CHARACTERISTIC = 3;
+    static final int TYPE_REQUEST_MTU = 4;
+    static final int TYPE_REQUEST_CONNECTION_PRIORITY = 5;
+    static final int TYPE_READ_REMOTE_RSSI = 6;
+
+    private static final int DEFAULT_TIMEOUT_MILLIS = 5000;
+    private static final int RETRY_DELAY_MILLIS = 100;
+    private static final int MAX_RETRIES = 2;
+
+    /**
+     * GATT operation for a device
+     */
+    abstract static class Operation {
+        final String deviceAddress;
+        final int type;
+        int retries = 0;
+
+        /**
+         * Constructor
+         *
+         * @param deviceAddress the device address
+         * @param type the operation type
+         */
+        Operation(@NonNull String deviceAddress, int type) {
+            this.deviceAddress = deviceAddress;
+            this.type = type;
+        }
+
+        /**
+         * Starts the operation
+         *
+         * @return true if the operation has been started
+         */
+        abstract boolean execute();
+
+        /**
+         * Checks if the completion callback will be received
+         *
+         * @return false if the operation completes on {@link #execute()}
+         */
+        boolean hasCallback() {
+            return true;
+        }
+
+        /**
+         * Called when all retries have been failed
+         */
+        void onFailed() {
+            // do nothing by default
+        }
+
+        /**
+         * Obtains the timeout for the completion callback
+         *
+         * @return the timeout in milliseconds
+         */
+        int getTimeoutMillis() {
+            return DEFAULT_TIMEOUT_MILLIS;
+        }
+
+        /**
+         * Checks if the operation can be retried on failure
+         *
+         * @return true if retryable
+         */
+        boolean isRetryable() {
+            // connections are retried by BleMidiReconnectManager with backoff
+            return type != TYPE_CONNECT;
+        }
+    }
+
+    private final Handler handler;
+    private final Deque<Operation> operations = new ArrayDeque<>();
+    private Operation currentOperation = null;
+
+    private final Runnable executeNextRunnable = new Runnable() {
+        @Override
+        public void run() {
+            executeNext();
+        }
+    };
+
+    private final Runnable timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final Operation operation;
+            synchronized (BleGattOperationQueue.this) {
+                operation = currentOperation;
+                currentOperation = null;
+            }
+
+            if (operation != null) {
+                Log.w(TAG, "GATT operation timed out. type:" + operation.type + ", device:" + operation.deviceAddress);
+                retryOrFail(operation);
+            }
+            executeNext();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param handler the handler to execute operations
+     */
+    BleGattOperationQueue(@NonNull Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Adds the operation to the queue
+     *
+     * @param operation the operation
+     */
+    void enqueue(@NonNull Operation operation) {
+        synchronized (this) {
+            operations.add(operation);
+            if (currentOperation != null) {
+                return;
+            }
+        }
+        handler.post(executeNextRunnable);
+    }
+
+    /**
+     * Called on the completion callback of the operation
+     *
+     * @param deviceAddress the device address
+     * @param type the operation type
+     */
+    void complete(@NonNull String deviceAddress, int type) {
+        synchronized (this) {
+            if (currentOperation == null || currentOperation.type != type || !currentOperation.deviceAddress.equals(deviceAddress)) {
+                return;
+            }
+            currentOperation = null;
+        }
+        handler.removeCallbacks(timeoutRunnable);
+        handler.post(executeNextRunnable);
+    }
+
+    /**
+     * Removes the operations for the device, called on disconnect
+     *
+     * @param deviceAddress the device address
+     */
+    void cancel(@NonNull String deviceAddress) {
+        boolean isCurrentCancelled = false;
+        synchronized (this) {
+            Iterator<Operation> iterator = operations.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().deviceAddress.equals(deviceAddress)) {
+                    iterator.remove();
+                }
+            }
+
+            if (currentOperation != null && currentOperation.deviceAddress.equals(deviceAddress)) {
+                currentOperation = null;
+                isCurrentCancelled = true;
+            }
+        }
+
+        if (isCurrentCancelled) {
+            handler.removeCallbacks(timeoutRunnable);
+            handler.post(executeNextRunnable);
+        }
+    }
+
+    /**
+     * Removes all operations
+     */
+    void clear() {
+        synchronized (this) {
+            operations.clear();
+            currentOperation = null;
+        }
+        handler.removeCallbacks(timeoutRunnable);
+        handler.removeCallbacks(executeNextRunnable);
+    }
+
+    /**
+     * Retries the operation at the head of the queue, or gives up
+     *
+     * @param operation the failed operation
+     */
+    private void retryOrFail(@NonNull Operation operation) {
+        if (operation.isRetryable() && operation.retries < MAX_RETRIES) {
+            operation.retries++;
+            synchronized (this) {
+                operations.addFirst(operation);
+            }
+            return;
+        }
+
+        operation.onFailed();
+    }
+
+    /**
+     * Executes the next operation, must be called on the handler's thread
+     */
+    private void executeNext() {
+        while (true) {
+            final Operation operation;
+            synchronized (this) {
+                if (currentOperation != null) {
+                    return;
+                }
+                operation = operations.poll();
+                if (operation == null) {
+                    return;
+                }
+                currentOperation = operation;
+            }
+
+            final boolean started = operation.execute();
+
+            synchronized (this) {
+                if (currentOperation != operation) {
+                    // completed or cancelled in execute()
+                    continue;
+                }
+
+                if (started && operation.hasCallback()) {
+                    handler.postDelayed(timeoutRunnable, operation.getTimeoutMillis());
+                    return;
+                }
+                currentOperation = null;
+            }
+
+            if (!started) {
+                // the stack may be busy: retry a little later
+                retryOrFail(operation);
+                handler.postDelayed(executeNextRunnable, RETRY_DELAY_MILLIS);
+                return;
+            }
+        }
+    }
+}
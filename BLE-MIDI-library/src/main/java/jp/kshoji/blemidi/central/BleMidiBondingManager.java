@@ -0,0 +1,161 @@
+package jp.kshoji.blemidi.central;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static jp.kshoji.blemidi.util.Constants.TAG;
+
+/**
+ * Manages the bonding of BLE MIDI devices<br />
+ * A single {@link BroadcastReceiver} is shared by all devices, and registered only while any bonding is in progress.
+ * The bonding doesn't block MIDI: the devices are configured without waiting for the bond,
+ * and the configurations are run again when bonded, for the peripherals requiring the encrypted link.
+ *
+ * @author K.Shoji
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+final class BleMidiBondingManager {
+    private final Context context;
+
+    private final Set<String> bondingDevices = new HashSet<>();
+    // device address -> configuration run when bonded
+    private final Map<String, Runnable> pendingConfigurations = new HashMap<>();
+    private boolean isReceiverRegistered = false;
+
+    private final BroadcastReceiver bondStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(intent.getAction())) {
+                return;
+            }
+
+            final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (device == null) {
+                return;
+            }
+
+            final int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR);
+            if (state != BluetoothDevice.BOND_BONDED && state != BluetoothDevice.BOND_NONE) {
+                return;
+            }
+
+            final Runnable configuration;
+            synchronized (BleMidiBondingManager.this) {
+                bondingDevices.remove(device.getAddress());
+                configuration = pendingConfigurations.remove(device.getAddress());
+                unregisterReceiverIfIdle();
+            }
+
+            if (state == BluetoothDevice.BOND_BONDED) {
+                Log.d(TAG, "Bonded: " + device.getAddress());
+                if (configuration != null) {
+                    configuration.run();
+                }
+            } else {
+                // failed or cancelled: the unencrypted link is kept
+                Log.d(TAG, "Bonding failed: " + device.getAddress());
+            }
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param context the context
+     */
+    BleMidiBondingManager(@NonNull Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Starts bonding with the device, if not bonded yet
+     *
+     * @param device the device
+     * @return true if the device has been already bonded
+     */
+    synchronized boolean bond(@NonNull BluetoothDevice device) {
+        if (device.getBondState() == BluetoothDevice.BOND_BONDED) {
+            return true;
+        }
+
+        if (bondingDevices.contains(device.getAddress())) {
+            return false;
+        }
+
+        registerReceiver();
+        bondingDevices.add(device.getAddress());
+        if (device.getBondState() != BluetoothDevice.BOND_BONDING && !device.createBond()) {
+            bondingDevices.remove(device.getAddress());
+            unregisterReceiverIfIdle();
+        }
+        return false;
+    }
+
+    /**
+     * Starts bonding if not bonded yet, and runs the configuration when the bonding has been completed<br />
+     * Nothing is run if the device has been already bonded.
+     *
+     * @param device the device
+     * @param configuration the configuration
+     */
+    synchronized void runWhenBonded(@NonNull BluetoothDevice device, @NonNull Runnable configuration) {
+        if (bond(device)) {
+            // already bonded: the link is encrypted on connect, the configuration is not needed again
+            return;
+        }
+
+        if (bondingDevices.contains(device.getAddress())) {
+            pendingConfigurations.put(device.getAddress(), configuration);
+        }
+    }
+
+    /**
+     * Cancels the pending configuration of the disconnected device
+     *
+     * @param deviceAddress the device address
+     */
+    synchronized void cancel(@NonNull String deviceAddress) {
+        pendingConfigurations.remove(deviceAddress);
+    }
+
+    /**
+     * Cancels all pending configurations, and unregisters the receiver
+     */
+    synchronized void terminate() {
+        pendingConfigurations.clear();
+        bondingDevices.clear();
+        unregisterReceiverIfIdle();
+    }
+
+    /**
+     * Registers the receiver for the bond state
+     */
+    private void registerReceiver() {
+        if (!isReceiverRegistered) {
+            context.registerReceiver(bondStateReceiver, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
+            isReceiverRegistered = true;
+        }
+    }
+
+    /**
+     * Unregisters the receiver, if no bonding is in progress
+     */
+    private void unregisterReceiverIfIdle() {
+        if (isReceiverRegistered && bondingDevices.isEmpty()) {
+            context.unregisterReceiver(bondStateReceiver);
+            isReceiverRegistered = false;
+        }
+    }
+}
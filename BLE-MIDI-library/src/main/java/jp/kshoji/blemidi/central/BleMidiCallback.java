@@ -9,21 +9,16 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Build;
+import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,9 +29,11 @@ import jp.kshoji.blemidi.device.MidiOutputDevice;
 import jp.kshoji.blemidi.listener.OnMidiDataListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceAttachedListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceDetachedListener;
+import jp.kshoji.blemidi.listener.OnMidiDeviceLinkQualityListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener;
 import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
 import jp.kshoji.blemidi.util.BleMidiDeviceUtils;
+import jp.kshoji.blemidi.util.BleMidiParser;
 import jp.kshoji.blemidi.util.BleUuidUtils;
 
 import static jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener.DEVICE_CHAR_ENABLE_WRITE;
@@ -53,8 +50,8 @@ import static jp.kshoji.blemidi.util.Constants.TAG;
  * @author K.Shoji
  */
 public final class BleMidiCallback extends BluetoothGattCallback {
-    private final Map<String, Set<MidiInputDevice>> midiInputDevicesMap = new HashMap<>();
-    private final Map<String, Set<MidiOutputDevice>> midiOutputDevicesMap = new HashMap<>();
+    private final BleMidiDeviceRegistry<MidiInputDevice> midiInputDeviceRegistry = new BleMidiDeviceRegistry<>();
+    private final BleMidiDeviceRegistry<MidiOutputDevice> midiOutputDeviceRegistry = new BleMidiDeviceRegistry<>();
     private final Map<String, BluetoothGatt> deviceAddressGattMap = new HashMap<>();
     private final Context context;
 
@@ -67,6 +64,19 @@ public final class BleMidiCallback extends BluetoothGattCallback {
 
     private boolean needsBonding = false;
 
+    private BleMidiReconnectManager reconnectManager = null;
+    private BleMidiScanScheduler scanScheduler = null;
+
+    private final Handler handler;
+    private final BleGattOperationQueue gattOperationQueue;
+    private final BleMidiBondingManager bondingManager;
+
+    private final BleMidiDeviceRegistry<BleMidiConnectionHealthMonitor> healthMonitorRegistry = new BleMidiDeviceRegistry<>();
+    // device address -> supervision timeouts of the consecutive short connections
+    private final Map<String, Integer> supervisionTimeoutCounts = new HashMap<>();
+    private OnMidiDeviceLinkQualityListener linkQualityListener = null;
+    private boolean isConnectionPriorityBoostEnabled = true;
+
     /**
      * Constructor
      *
@@ -75,6 +85,48 @@ public final class BleMidiCallback extends BluetoothGattCallback {
     public BleMidiCallback(@NonNull final Context context) {
         super();
         this.context = context;
+        this.handler = new Handler(context.getMainLooper());
+        this.gattOperationQueue = new BleGattOperationQueue(handler);
+        this.bondingManager = new BleMidiBondingManager(context);
+    }
+
+    /**
+     * Obtains the queue for GATT operations, shared by all devices
+     *
+     * @return the queue
+     */
+    @NonNull
+    BleGattOperationQueue getGattOperationQueue() {
+        return gattOperationQueue;
+    }
+
+    /**
+     * Creates the callback for a connection of the device<br />
+     * The callback is bound to the device's {@link MidiInputDevice} when attached, so the incoming data is passed without looking up the devices.
+     *
+     * @return the callback, used for {@link BluetoothDevice#connectGatt(Context, boolean, BluetoothGattCallback)}
+     */
+    @NonNull
+    BluetoothGattCallback newDeviceGattCallback() {
+        return new DeviceGattCallback();
+    }
+
+    /**
+     * Sets the manager to be notified the attached and disconnected devices
+     *
+     * @param reconnectManager the manager
+     */
+    void setReconnectManager(@Nullable BleMidiReconnectManager reconnectManager) {
+        this.reconnectManager = reconnectManager;
+    }
+
+    /**
+     * Sets the scheduler to burst the scan when a device has been dropped
+     *
+     * @param scanScheduler the scheduler
+     */
+    void setScanScheduler(@Nullable BleMidiScanScheduler scanScheduler) {
+        this.scanScheduler = scanScheduler;
     }
 
     /**
@@ -90,7 +142,7 @@ public final class BleMidiCallback extends BluetoothGattCallback {
     }
 
     @Override
-    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+    public void onConnectionStateChange(final BluetoothGatt gatt, int status, int newState) {
         super.onConnectionStateChange(gatt, status, newState);
 
         Log.w(TAG, "onConnectionStateChange!!!![" + newState + "]");
@@ -99,34 +151,69 @@ public final class BleMidiCallback extends BluetoothGattCallback {
 
         if (newState == BluetoothProfile.STATE_CONNECTED) {
             Log.w(TAG, "onConnectionStateChange!!!![" + newState + "] 1");
+            final String deviceAddress = gatt.getDevice().getAddress();
+
+            if (needsBonding && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                // start bonding in parallel with the service discovery
+                bondingManager.bond(gatt.getDevice());
+            }
 
             notifyMidiDeviceStatusChanged(gatt.getDevice(), DEVICE_SERVICE_DISCOVERING);
 
-            if (!deviceAddressGattMap.containsKey(gatt.getDevice().getAddress())) {
+            if (!deviceAddressGattMap.containsKey(deviceAddress)) {
                 Log.w(TAG, "onConnectionStateChange!!!![" + newState + "] 2");
-                if (gatt.discoverServices()) {
-                    Log.w(TAG, "onConnectionStateChange!!!![" + newState + "] 3");
-                    // successfully started discovering
-                } else {
-                    // already disconnected
-                    Log.w(TAG, "onConnectionStateChange!!!![" + newState + "] 4");
-                    disconnectByDeviceAddress(gatt.getDevice().getAddress());
-                }
+                gattOperationQueue.enqueue(new BleGattOperationQueue.Operation(deviceAddress, BleGattOperationQueue.TYPE_DISCOVER_SERVICES) {
+                    @Override
+                    boolean execute() {
+                        return gatt.discoverServices();
+                    }
+
+                    @Override
+                    void onFailed() {
+                        // already disconnected
+                        Log.w(TAG, "onConnectionStateChange!!!! discoverServices failed");
+                        disconnectByDeviceAddress(deviceAddress);
+                    }
+                });
             }
         } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
             Log.w(TAG, "onConnectionStateChange!!!![" + newState + "] 5");
+            gattOperationQueue.cancel(gatt.getDevice().getAddress());
+            final boolean wasAttached = isConnected(gatt.getDevice());
+            if (wasAttached) {
+                updateSupervisionTimeouts(gatt.getDevice().getAddress(), status == BleMidiConnectionHealthMonitor.GATT_CONN_TIMEOUT);
+            }
             disconnectByDeviceAddress(gatt.getDevice().getAddress());
 
             notifyMidiDeviceStatusChanged(gatt.getDevice(), DEVICE_DISCONNECTED);
+
+            if (reconnectManager != null) {
+                reconnectManager.onDisconnected(gatt, wasAttached);
+            }
+            if (wasAttached && scanScheduler != null) {
+                scanScheduler.burst();
+            }
         }
     }
 
-    @SuppressLint("NewApi")
     @Override
     public void onServicesDiscovered(final BluetoothGatt gatt, int status) {
         super.onServicesDiscovered(gatt, status);
 
+        onServicesDiscovered(gatt, status, null);
+    }
+
+    /**
+     * Attaches the MIDI devices of the discovered services
+     *
+     * @param gatt the gatt
+     * @param status the status
+     * @param deviceGattCallback the callback to bind the attached input device, null if this callback is used for the connection
+     */
+    @SuppressLint("NewApi")
+    private void onServicesDiscovered(final BluetoothGatt gatt, int status, @Nullable DeviceGattCallback deviceGattCallback) {
         Log.e(TAG, "onServicesDiscovered!!!!");
+        gattOperationQueue.complete(gatt.getDevice().getAddress(), BleGattOperationQueue.TYPE_DISCOVER_SERVICES);
 
         if (status != BluetoothGatt.GATT_SUCCESS) {
             notifyMidiDeviceStatusChanged(gatt.getDevice(), DEVICE_SERVICE_DISCOVERED_FAILED);
@@ -138,16 +225,11 @@ public final class BleMidiCallback extends BluetoothGattCallback {
         final String gattDeviceAddress = gatt.getDevice().getAddress();
 
         // find MIDI Input device
-        if (midiInputDevicesMap.containsKey(gattDeviceAddress)) {
-            synchronized (midiInputDevicesMap) {
-                Set<MidiInputDevice> midiInputDevices = midiInputDevicesMap.get(gattDeviceAddress);
-                for (MidiInputDevice midiInputDevice : midiInputDevices) {
-                    ((InternalMidiInputDevice) midiInputDevice).stop();
-                    midiInputDevice.setOnMidiInputEventListener(null);
-                    midiInputDevice.setOnMidiDataListener(null);
-                }
-                midiInputDevicesMap.remove(gattDeviceAddress);
-            }
+        MidiInputDevice previousMidiInputDevice = midiInputDeviceRegistry.remove(gattDeviceAddress);
+        if (previousMidiInputDevice != null) {
+            ((InternalMidiInputDevice) previousMidiInputDevice).stop();
+            previousMidiInputDevice.setOnMidiInputEventListener(null);
+            previousMidiInputDevice.setOnMidiDataListener(null);
         }
 
         MidiInputDevice midiInputDevice = null;
@@ -156,20 +238,15 @@ public final class BleMidiCallback extends BluetoothGattCallback {
         } catch (IllegalArgumentException iae) {
             Log.d(TAG, iae.getMessage());
         }
+        if (deviceGattCallback != null) {
+            deviceGattCallback.midiInputDevice = (InternalMidiInputDevice) midiInputDevice;
+            deviceGattCallback.healthMonitor = null;
+        }
         if (midiInputDevice != null) {
-            synchronized (midiInputDevicesMap) {
-                if (midiDataListener != null) {
-                    midiInputDevice.setOnMidiDataListener(midiDataListener);
-                }
-
-                Set<MidiInputDevice> midiInputDevices = midiInputDevicesMap.get(gattDeviceAddress);
-                if (midiInputDevices == null) {
-                    midiInputDevices = new HashSet<>();
-                    midiInputDevicesMap.put(gattDeviceAddress, midiInputDevices);
-                }
-
-                midiInputDevices.add(midiInputDevice);
+            if (midiDataListener != null) {
+                midiInputDevice.setOnMidiDataListener(midiDataListener);
             }
+            midiInputDeviceRegistry.put(gattDeviceAddress, midiInputDevice);
 
             // don't notify if the same device already connected
             if (!deviceAddressGattMap.containsKey(gattDeviceAddress)) {
@@ -180,11 +257,7 @@ public final class BleMidiCallback extends BluetoothGattCallback {
         }
 
         // find MIDI Output device
-        if (midiOutputDevicesMap.containsKey(gattDeviceAddress)) {
-            synchronized (midiOutputDevicesMap) {
-                midiOutputDevicesMap.remove(gattDeviceAddress);
-            }
-        }
+        midiOutputDeviceRegistry.remove(gattDeviceAddress);
 
         MidiOutputDevice midiOutputDevice = null;
         try {
@@ -193,15 +266,7 @@ public final class BleMidiCallback extends BluetoothGattCallback {
             Log.d(TAG, iae.getMessage());
         }
         if (midiOutputDevice != null) {
-            synchronized (midiOutputDevicesMap) {
-                Set<MidiOutputDevice> midiOutputDevices = midiOutputDevicesMap.get(gattDeviceAddress);
-                if (midiOutputDevices == null) {
-                    midiOutputDevices = new HashSet<>();
-                    midiOutputDevicesMap.put(gattDeviceAddress, midiOutputDevices);
-                }
-
-                midiOutputDevices.add(midiOutputDevice);
-            }
+            midiOutputDeviceRegistry.put(gattDeviceAddress, midiOutputDevice);
 
             // don't notify if the same device already connected
             if (!deviceAddressGattMap.containsKey(gattDeviceAddress)) {
@@ -216,36 +281,74 @@ public final class BleMidiCallback extends BluetoothGattCallback {
                 deviceAddressGattMap.put(gattDeviceAddress, gatt);
             }
 
+            final int supervisionTimeouts;
+            synchronized (supervisionTimeoutCounts) {
+                Integer count = supervisionTimeoutCounts.get(gattDeviceAddress);
+                supervisionTimeouts = count == null ? 0 : count;
+            }
+            BleMidiConnectionHealthMonitor healthMonitor = new BleMidiConnectionHealthMonitor(this, handler, gatt, supervisionTimeouts);
+            BleMidiConnectionHealthMonitor previousHealthMonitor = healthMonitorRegistry.put(gattDeviceAddress, healthMonitor);
+            if (previousHealthMonitor != null) {
+                previousHealthMonitor.stop();
+            }
+            if (deviceGattCallback != null) {
+                deviceGattCallback.healthMonitor = healthMonitor;
+            }
+            if (midiOutputDevice != null) {
+                ((InternalMidiOutputDevice) midiOutputDevice).healthMonitor = healthMonitor;
+            }
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                // Set the connection priority to high(for low latency), first to speed up the following operations
+                gattOperationQueue.enqueue(new BleGattOperationQueue.Operation(gattDeviceAddress, BleGattOperationQueue.TYPE_REQUEST_CONNECTION_PRIORITY) {
+                    @Override
+                    boolean execute() {
+                        return gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                    }
+
+                    @Override
+                    boolean hasCallback() {
+                        return false;
+                    }
+                });
+            }
+
+            // configure without waiting for the bond, MIDI flows immediately if the peripheral permits the unencrypted link
+            if (midiInputDevice != null) {
+                ((InternalMidiInputDevice)midiInputDevice).configureAsCentralDevice(gattOperationQueue);
+            }
+            if (midiOutputDevice != null) {
+                ((InternalMidiOutputDevice)midiOutputDevice).configureAsCentralDevice();
+            }
+
             if (needsBonding && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                // Create bond and configure Gatt, if this is BLE MIDI device
-                BluetoothDevice bluetoothDevice = gatt.getDevice();
-                if (bluetoothDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    bluetoothDevice.createBond();
-                    bluetoothDevice.setPairingConfirmation(true);
-
-                    if (bondingBroadcastReceiver != null) {
-                        context.unregisterReceiver(bondingBroadcastReceiver);
+                // Create bond, and enable the notification again when bonded, for the peripheral requiring the encrypted link
+                final InternalMidiInputDevice bondingMidiInputDevice = (InternalMidiInputDevice) midiInputDevice;
+                bondingManager.runWhenBonded(gatt.getDevice(), new Runnable() {
+                    @Override
+                    public void run() {
+                        if (bondingMidiInputDevice != null) {
+                            bondingMidiInputDevice.configureAsCentralDevice(gattOperationQueue);
+                        }
                     }
-                    bondingBroadcastReceiver = new BondingBroadcastReceiver(midiInputDevice, midiOutputDevice);
-                    IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
-                    context.registerReceiver(bondingBroadcastReceiver, filter);
-                }
-            } else {
-                if (midiInputDevice != null) {
-                    ((InternalMidiInputDevice)midiInputDevice).configureAsCentralDevice();
-                }
-                if (midiOutputDevice != null) {
-                    ((InternalMidiOutputDevice)midiOutputDevice).configureAsCentralDevice();
-                }
+                });
             }
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                 // default is 23: maximum data length is 20 bytes
                 // max is 512: maximum data length is 509 bytes
-                gatt.requestMtu(23); // default value
+                gattOperationQueue.enqueue(new BleGattOperationQueue.Operation(gattDeviceAddress, BleGattOperationQueue.TYPE_REQUEST_MTU) {
+                    @Override
+                    boolean execute() {
+                        return gatt.requestMtu(23); // default value
+                    }
+                });
+            }
+
+            healthMonitor.start();
 
-                // Set the connection priority to high(for low latency)
-                gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+            if (reconnectManager != null) {
+                reconnectManager.onAttached(gatt.getDevice());
             }
         }
     }
@@ -258,9 +361,15 @@ public final class BleMidiCallback extends BluetoothGattCallback {
 
         notifyMidiDeviceStatusChanged(gatt.getDevice(), DEVICE_CHAR_RECV_DATA);
 
-        Set<MidiInputDevice> midiInputDevices = midiInputDevicesMap.get(gatt.getDevice().getAddress());
-        for (MidiInputDevice midiInputDevice : midiInputDevices) {
-            ((InternalMidiInputDevice)midiInputDevice).incomingData(characteristic.getValue());
+        final byte[] data = characteristic.getValue();
+        BleMidiConnectionHealthMonitor healthMonitor = healthMonitorRegistry.get(gatt.getDevice().getAddress());
+        if (healthMonitor != null) {
+            healthMonitor.onNotification(data);
+        }
+
+        MidiInputDevice midiInputDevice = midiInputDeviceRegistry.get(gatt.getDevice().getAddress());
+        if (midiInputDevice != null) {
+            ((InternalMidiInputDevice)midiInputDevice).incomingData(data);
         }
     }
 
@@ -269,6 +378,7 @@ public final class BleMidiCallback extends BluetoothGattCallback {
         super.onDescriptorWrite(gatt, descriptor, status);
 
         Log.w(TAG, "onDescriptorWrite!!!!");
+        gattOperationQueue.complete(gatt.getDevice().getAddress(), BleGattOperationQueue.TYPE_WRITE_DESCRIPTOR);
 
         if (descriptor != null) {
             if (Arrays.equals(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, descriptor.getValue())) {
@@ -279,6 +389,119 @@ public final class BleMidiCallback extends BluetoothGattCallback {
         }
     }
 
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        super.onCharacteristicRead(gatt, characteristic, status);
+
+        gattOperationQueue.complete(gatt.getDevice().getAddress(), BleGattOperationQueue.TYPE_READ_CHARACTERISTIC);
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        super.onMtuChanged(gatt, mtu, status);
+
+        gattOperationQueue.complete(gatt.getDevice().getAddress(), BleGattOperationQueue.TYPE_REQUEST_MTU);
+    }
+
+    @Override
+    public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+        super.onReadRemoteRssi(gatt, rssi, status);
+
+        gattOperationQueue.complete(gatt.getDevice().getAddress(), BleGattOperationQueue.TYPE_READ_REMOTE_RSSI);
+
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            BleMidiConnectionHealthMonitor healthMonitor = healthMonitorRegistry.get(gatt.getDevice().getAddress());
+            if (healthMonitor != null) {
+                healthMonitor.onRssiRead(rssi);
+            }
+        }
+    }
+
+    /**
+     * Counts the supervision timeouts of the device, the count is reset by the stable connection
+     *
+     * @param deviceAddress the device address
+     * @param isSupervisionTimeout true if the connection has been dropped by the supervision timeout
+     */
+    private void updateSupervisionTimeouts(@NonNull String deviceAddress, boolean isSupervisionTimeout) {
+        BleMidiConnectionHealthMonitor healthMonitor = healthMonitorRegistry.get(deviceAddress);
+        final boolean isStable = healthMonitor != null && healthMonitor.getConnectedMillis() >= BleMidiConnectionHealthMonitor.STABLE_CONNECTION_MILLIS;
+
+        synchronized (supervisionTimeoutCounts) {
+            Integer count = supervisionTimeoutCounts.get(deviceAddress);
+            if (isStable || count == null) {
+                count = 0;
+            }
+
+            if (isSupervisionTimeout) {
+                supervisionTimeoutCounts.put(deviceAddress, count + 1);
+            } else {
+                supervisionTimeoutCounts.remove(deviceAddress);
+            }
+        }
+    }
+
+    /**
+     * {@link BluetoothGattCallback} for a connection of the device<br />
+     * Delegates the events to {@link BleMidiCallback}, except the incoming data that is passed to the bound input device directly.
+     *
+     * @author K.Shoji
+     */
+    private final class DeviceGattCallback extends BluetoothGattCallback {
+        volatile InternalMidiInputDevice midiInputDevice = null;
+        volatile BleMidiConnectionHealthMonitor healthMonitor = null;
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                midiInputDevice = null;
+                healthMonitor = null;
+            }
+            BleMidiCallback.this.onConnectionStateChange(gatt, status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            BleMidiCallback.this.onServicesDiscovered(gatt, status, this);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            notifyMidiDeviceStatusChanged(gatt.getDevice(), DEVICE_CHAR_RECV_DATA);
+
+            final byte[] data = characteristic.getValue();
+            BleMidiConnectionHealthMonitor monitor = healthMonitor;
+            if (monitor != null) {
+                monitor.onNotification(data);
+            }
+
+            InternalMidiInputDevice device = midiInputDevice;
+            if (device != null) {
+                device.incomingData(data);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            BleMidiCallback.this.onDescriptorWrite(gatt, descriptor, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            BleMidiCallback.this.onCharacteristicRead(gatt, characteristic, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            BleMidiCallback.this.onMtuChanged(gatt, mtu, status);
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            BleMidiCallback.this.onReadRemoteRssi(gatt, rssi, status);
+        }
+    }
+
     /**
      * Disconnect the specified device
      *
@@ -289,6 +512,9 @@ public final class BleMidiCallback extends BluetoothGattCallback {
             return;
         }
 
+        if (reconnectManager != null) {
+            reconnectManager.cancel(midiInputDevice.getDeviceAddress());
+        }
         disconnectByDeviceAddress(midiInputDevice.getDeviceAddress());
     }
 
@@ -302,6 +528,9 @@ public final class BleMidiCallback extends BluetoothGattCallback {
             return;
         }
 
+        if (reconnectManager != null) {
+            reconnectManager.cancel(midiOutputDevice.getDeviceAddress());
+        }
         disconnectByDeviceAddress(midiOutputDevice.getDeviceAddress());
     }
 
@@ -311,6 +540,14 @@ public final class BleMidiCallback extends BluetoothGattCallback {
      * @param deviceAddress the device address from {@link android.bluetooth.BluetoothGatt}
      */
     private void disconnectByDeviceAddress(@NonNull String deviceAddress) {
+        gattOperationQueue.cancel(deviceAddress);
+        bondingManager.cancel(deviceAddress);
+
+        BleMidiConnectionHealthMonitor healthMonitor = healthMonitorRegistry.remove(deviceAddress);
+        if (healthMonitor != null) {
+            healthMonitor.stop();
+        }
+
         synchronized (deviceAddressGattMap) {
             BluetoothGatt bluetoothGatt = deviceAddressGattMap.get(deviceAddress);
 
@@ -326,36 +563,21 @@ public final class BleMidiCallback extends BluetoothGattCallback {
             }
         }
 
-        synchronized (midiInputDevicesMap) {
-            Set<MidiInputDevice> midiInputDevices = midiInputDevicesMap.get(deviceAddress);
-            if (midiInputDevices != null) {
-                midiInputDevicesMap.remove(deviceAddress);
-
-                for (MidiInputDevice midiInputDevice : midiInputDevices) {
-                    ((InternalMidiInputDevice) midiInputDevice).stop();
-                    midiInputDevice.setOnMidiInputEventListener(null);
-                    midiInputDevice.setOnMidiDataListener(null);
-
-                    if (midiDeviceDetachedListener != null) {
-                        midiDeviceDetachedListener.onMidiInputDeviceDetached(midiInputDevice);
-                    }
+        MidiInputDevice midiInputDevice = midiInputDeviceRegistry.remove(deviceAddress);
+        if (midiInputDevice != null) {
+            ((InternalMidiInputDevice) midiInputDevice).stop();
+            midiInputDevice.setOnMidiInputEventListener(null);
+            midiInputDevice.setOnMidiDataListener(null);
 
-                }
-                midiInputDevices.clear();
+            if (midiDeviceDetachedListener != null) {
+                midiDeviceDetachedListener.onMidiInputDeviceDetached(midiInputDevice);
             }
         }
 
-        synchronized (midiOutputDevicesMap) {
-            Set<MidiOutputDevice> midiOutputDevices = midiOutputDevicesMap.get(deviceAddress);
-            if (midiOutputDevices != null) {
-                midiOutputDevicesMap.remove(deviceAddress);
-
-                for (MidiOutputDevice midiOutputDevice : midiOutputDevices) {
-                    if (midiDeviceDetachedListener != null) {
-                        midiDeviceDetachedListener.onMidiOutputDeviceDetached(midiOutputDevice);
-                    }
-                }
-                midiOutputDevices.clear();
+        MidiOutputDevice midiOutputDevice = midiOutputDeviceRegistry.remove(deviceAddress);
+        if (midiOutputDevice != null) {
+            if (midiDeviceDetachedListener != null) {
+                midiDeviceDetachedListener.onMidiOutputDeviceDetached(midiOutputDevice);
             }
         }
     }
@@ -364,6 +586,12 @@ public final class BleMidiCallback extends BluetoothGattCallback {
      * Terminates callback
      */
     public void terminate() {
+        gattOperationQueue.clear();
+
+        for (BleMidiConnectionHealthMonitor healthMonitor : healthMonitorRegistry.clear()) {
+            healthMonitor.stop();
+        }
+
         synchronized (deviceAddressGattMap) {
             for (BluetoothGatt bluetoothGatt : deviceAddressGattMap.values()) {
                 bluetoothGatt.disconnect();
@@ -372,31 +600,17 @@ public final class BleMidiCallback extends BluetoothGattCallback {
             deviceAddressGattMap.clear();
         }
 
-        synchronized (midiInputDevicesMap) {
-            for (Set<MidiInputDevice> midiInputDevices : midiInputDevicesMap.values()) {
-                for (MidiInputDevice midiInputDevice : midiInputDevices) {
-                    ((InternalMidiInputDevice) midiInputDevice).stop();
-                    midiInputDevice.setOnMidiInputEventListener(null);
-                    midiInputDevice.setOnMidiDataListener(null);
-                }
-
-                midiInputDevices.clear();
-            }
-            midiInputDevicesMap.clear();
+        for (MidiInputDevice midiInputDevice : midiInputDeviceRegistry.clear()) {
+            ((InternalMidiInputDevice) midiInputDevice).stop();
+            midiInputDevice.setOnMidiInputEventListener(null);
+            midiInputDevice.setOnMidiDataListener(null);
         }
 
-        synchronized (midiOutputDevicesMap) {
-            midiOutputDevicesMap.clear();
-        }
+        midiOutputDeviceRegistry.clear();
 
-        if (bondingBroadcastReceiver != null) {
-            context.unregisterReceiver(bondingBroadcastReceiver);
-            bondingBroadcastReceiver = null;
-        }
+        bondingManager.terminate();
     }
 
-    private BondingBroadcastReceiver bondingBroadcastReceiver;
-
     /**
      * Set if the Bluetooth LE device need `Pairing`
      *
@@ -409,88 +623,34 @@ public final class BleMidiCallback extends BluetoothGattCallback {
     }
 
     /**
-     * {@link android.content.BroadcastReceiver} for BLE Bonding
+     * Starts bonding with the device before connecting, to avoid the pairing on the first connection
      *
-     * @author K.Shoji
+     * @param device the device
+     * @return true if the device has been already bonded
      */
-    private class BondingBroadcastReceiver extends BroadcastReceiver {
-        final MidiInputDevice midiInputDevice;
-        final MidiOutputDevice midiOutputDevice;
-
-        /**
-         * Constructor
-         *
-         * @param midiInputDevice input device
-         * @param midiOutputDevice output device
-         */
-        BondingBroadcastReceiver(@Nullable MidiInputDevice midiInputDevice, @Nullable MidiOutputDevice midiOutputDevice) {
-            this.midiInputDevice = midiInputDevice;
-            this.midiOutputDevice = midiOutputDevice;
-        }
-
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-
-
-            Log.w(TAG, "BondingBroadcastReceiver:onReceive!!!!");
-
-            if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
-                final int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR);
-
-                if (state == BluetoothDevice.BOND_BONDED) {
-                    // successfully bonded
-                    context.unregisterReceiver(this);
-                    bondingBroadcastReceiver = null;
-
-                    if (midiInputDevice != null) {
-                        ((InternalMidiInputDevice) midiInputDevice).configureAsCentralDevice();
-                    }
-                    if (midiOutputDevice != null) {
-                        ((InternalMidiOutputDevice) midiOutputDevice).configureAsCentralDevice();
-                    }
-                }
-            }
-        }
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public boolean bondDevice(@NonNull BluetoothDevice device) {
+        return bondingManager.bond(device);
     }
 
     /**
      * Obtains connected input devices
      *
-     * @return Set of {@link jp.kshoji.blemidi.device.MidiInputDevice}
+     * @return the unmodifiable snapshot Set of {@link jp.kshoji.blemidi.device.MidiInputDevice}
      */
     @NonNull
     public Set<MidiInputDevice> getMidiInputDevices() {
-
-        Log.w(TAG, "getMidiInputDevices!!!!");
-        Collection<Set<MidiInputDevice>> values = midiInputDevicesMap.values();
-
-        Set<MidiInputDevice> result = new HashSet<>();
-        for (Set<MidiInputDevice> value: values) {
-            result.addAll(value);
-        }
-
-        return Collections.unmodifiableSet(result);
+        return midiInputDeviceRegistry.getDevices();
     }
 
     /**
      * Obtains connected output devices
      *
-     * @return Set of {@link jp.kshoji.blemidi.device.MidiOutputDevice}
+     * @return the unmodifiable snapshot Set of {@link jp.kshoji.blemidi.device.MidiOutputDevice}
      */
     @NonNull
     public Set<MidiOutputDevice> getMidiOutputDevices() {
-
-        Log.w(TAG, "getMidiOutputDevices!!!!");
-
-        Collection<Set<MidiOutputDevice>> values = midiOutputDevicesMap.values();
-
-        Set<MidiOutputDevice> result = new HashSet<>();
-        for (Set<MidiOutputDevice> value: values) {
-            result.addAll(value);
-        }
-
-        return Collections.unmodifiableSet(result);
+        return midiOutputDeviceRegistry.getDevices();
     }
 
     /**
@@ -524,18 +684,69 @@ public final class BleMidiCallback extends BluetoothGattCallback {
         this.midiDataListener = midiDataListener;
     }
 
+    /**
+     * Set the listener for the link quality of the connected devices
+     *
+     * @param linkQualityListener the listener
+     */
+    public void setOnMidiDeviceLinkQualityListener(@Nullable OnMidiDeviceLinkQualityListener linkQualityListener) {
+        this.linkQualityListener = linkQualityListener;
+    }
+
+    /**
+     * Obtains the listener for the link quality
+     *
+     * @return the listener
+     */
+    @Nullable
+    OnMidiDeviceLinkQualityListener getOnMidiDeviceLinkQualityListener() {
+        return linkQualityListener;
+    }
+
+    /**
+     * Set if the high connection priority is requested again when the link quality has been degraded
+     *
+     * @param enabled true to request, default is true
+     */
+    public void setConnectionPriorityBoostEnabled(boolean enabled) {
+        isConnectionPriorityBoostEnabled = enabled;
+    }
+
+    /**
+     * Checks if the high connection priority is requested again when the link quality has been degraded
+     *
+     * @return true if enabled
+     */
+    boolean isConnectionPriorityBoostEnabled() {
+        return isConnectionPriorityBoostEnabled;
+    }
+
+    /**
+     * Obtains the last link quality of the device
+     *
+     * @param deviceAddress the device address
+     * @return the score, 0(worst) to 100(best), or -1 if the device is not attached
+     */
+    public int getLinkQuality(@NonNull String deviceAddress) {
+        BleMidiConnectionHealthMonitor healthMonitor = healthMonitorRegistry.get(deviceAddress);
+        return healthMonitor == null ? -1 : healthMonitor.getLinkQuality();
+    }
+
     /**
      * {@link MidiInputDevice} for Central
      *
      * @author K.Shoji
      */
     private static final class InternalMidiInputDevice extends MidiInputDevice {
+        private static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = BleUuidUtils.fromShortValue(0x2902);
+
         private final BluetoothGatt bluetoothGatt;
         private final BluetoothGattCharacteristic midiInputCharacteristic;
 
         private OnMidiDataListener midiDataListener;
 
-//        private final BleMidiParser midiParser = new BleMidiParser(this);
+        // created when the decoded events are required
+        private volatile BleMidiParser midiParser = null;
 
         /**
          * Constructor for Central
@@ -557,39 +768,66 @@ public final class BleMidiCallback extends BluetoothGattCallback {
                 throw new IllegalArgumentException("MIDI GattService not found from '" + bluetoothGatt.getDevice().getName() + "'. Service UUIDs:" + Arrays.toString(uuidList.toArray()));
             }
 
-            midiInputCharacteristic = BleMidiDeviceUtils.getMidiInputCharacteristic(context, midiService);
+            midiInputCharacteristic = BleMidiDeviceUtils.getMidiInputCharacteristic(context, bluetoothGatt, midiService);
             if (midiInputCharacteristic == null) {
                 throw new IllegalArgumentException("MIDI Input GattCharacteristic not found. Service UUID:" + midiService.getUuid());
             }
         }
 
         /**
-         * Stops parser's thread
+         * Releases the sounding notes, and stops parser's thread
          */
         void stop() {
-            //midiParser.stop();
+            BleMidiParser parser = midiParser;
+            if (parser != null) {
+                parser.releaseSoundingNotes();
+                parser.stop();
+            }
         }
 
         /**
          * Configure the device as BLE Central
          */
-        public void configureAsCentralDevice() {
+        public void configureAsCentralDevice(@NonNull BleGattOperationQueue gattOperationQueue) {
             bluetoothGatt.setCharacteristicNotification(midiInputCharacteristic, true);
 
+            final String deviceAddress = getDeviceAddress();
             List<BluetoothGattDescriptor> descriptors = midiInputCharacteristic.getDescriptors();
-            for (BluetoothGattDescriptor descriptor : descriptors) {
-                if (BleUuidUtils.matches(BleUuidUtils.fromShortValue(0x2902), descriptor.getUuid())) {
-                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                    bluetoothGatt.writeDescriptor(descriptor);
+            for (final BluetoothGattDescriptor descriptor : descriptors) {
+                if (BleUuidUtils.matches(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID, descriptor.getUuid())) {
+                    gattOperationQueue.enqueue(new BleGattOperationQueue.Operation(deviceAddress, BleGattOperationQueue.TYPE_WRITE_DESCRIPTOR) {
+                        @Override
+                        boolean execute() {
+                            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                            return bluetoothGatt.writeDescriptor(descriptor);
+                        }
+                    });
                 }
             }
 
-            bluetoothGatt.readCharacteristic(midiInputCharacteristic);
+            gattOperationQueue.enqueue(new BleGattOperationQueue.Operation(deviceAddress, BleGattOperationQueue.TYPE_READ_CHARACTERISTIC) {
+                @Override
+                boolean execute() {
+                    return bluetoothGatt.readCharacteristic(midiInputCharacteristic);
+                }
+            });
         }
 
         @Override
         public void setOnMidiInputEventListener(OnMidiInputEventListener midiInputEventListener) {
-            //midiParser.setMidiInputEventListener(midiInputEventListener);
+            if (midiInputEventListener == null && midiParser == null) {
+                return;
+            }
+            getMidiParser().setMidiInputEventListener(midiInputEventListener);
+        }
+
+        @NonNull
+        @Override
+        public synchronized BleMidiParser getMidiParser() {
+            if (midiParser == null) {
+                midiParser = new BleMidiParser(this);
+            }
+            return midiParser;
         }
 
         @Override
@@ -625,7 +863,11 @@ public final class BleMidiCallback extends BluetoothGattCallback {
 
                 midiDataListener.onMidiData(this, parse(data));
             }
-            //midiParser.parse(data);
+
+            BleMidiParser parser = midiParser;
+            if (parser != null) {
+                parser.parse(data);
+            }
         }
 
         /**
@@ -670,6 +912,8 @@ public final class BleMidiCallback extends BluetoothGattCallback {
         private final BluetoothGatt bluetoothGatt;
         private final BluetoothGattCharacteristic midiOutputCharacteristic;
 
+        volatile BleMidiConnectionHealthMonitor healthMonitor = null;
+
         /**
          * Constructor for Central
          *
@@ -690,7 +934,7 @@ public final class BleMidiCallback extends BluetoothGattCallback {
                 throw new IllegalArgumentException("MIDI GattService not found from '" + bluetoothGatt.getDevice().getName() + "'. Service UUIDs:" + Arrays.toString(uuidList.toArray()));
             }
 
-            midiOutputCharacteristic = BleMidiDeviceUtils.getMidiOutputCharacteristic(context, midiService);
+            midiOutputCharacteristic = BleMidiDeviceUtils.getMidiOutputCharacteristic(context, bluetoothGatt, midiService);
             if (midiOutputCharacteristic == null) {
                 throw new IllegalArgumentException("MIDI Output GattCharacteristic not found. Service UUID:" + midiService.getUuid());
             }
@@ -708,12 +952,20 @@ public final class BleMidiCallback extends BluetoothGattCallback {
             Log.w(TAG, "transferData!!!!");
             midiOutputCharacteristic.setValue(writeBuffer);
 
+            boolean isWritten = false;
             try {
-                bluetoothGatt.writeCharacteristic(midiOutputCharacteristic);
+                isWritten = bluetoothGatt.writeCharacteristic(midiOutputCharacteristic);
             } catch (Throwable ignored) {
                 // android.os.DeadObjectException will be thrown
                 // ignore it
             }
+
+            if (!isWritten) {
+                BleMidiConnectionHealthMonitor monitor = healthMonitor;
+                if (monitor != null) {
+                    monitor.onWriteFailed();
+                }
+            }
         }
 
         @NonNull
@@ -28,6 +28,8 @@ import jp.kshoji.blemidi.listener.OnMidiDataListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceAttachedListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceDetachedListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceFoundListener;
+import jp.kshoji.blemidi.listener.OnMidiDeviceLinkQualityListener;
+import jp.kshoji.blemidi.listener.OnMidiDeviceScanResultListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener;
 import jp.kshoji.blemidi.listener.OnMidiScanStatusListener;
 import jp.kshoji.blemidi.util.BleMidiDeviceUtils;
@@ -43,13 +45,32 @@ import static jp.kshoji.blemidi.util.Constants.TAG;
  * @author K.Shoji
  */
 public final class BleMidiCentralProvider {
+    /**
+     * Scan policy: always scans in low latency mode(default)
+     */
+    public static final int SCAN_POLICY_LOW_LATENCY = 0;
+    /**
+     * Scan policy: starts in low latency mode, and backs off to balanced and low power mode while no new devices are found
+     */
+    public static final int SCAN_POLICY_ADAPTIVE = 1;
+    /**
+     * Scan policy: always scans in low power mode
+     */
+    public static final int SCAN_POLICY_LOW_POWER = 2;
+
     private final BluetoothAdapter bluetoothAdapter;
     private final Context context;
     private final Handler handler;
     private final BleMidiCallback midiCallback;
+    private final BleMidiReconnectManager reconnectManager;
+    private final BleMidiScanScheduler scanScheduler;
 
     private OnMidiDeviceFoundListener bluetoothDeviceFoundListener;
 
+    private OnMidiDeviceScanResultListener scanResultListener;
+
+    private final BleMidiScanResultAggregator scanResultAggregator = new BleMidiScanResultAggregator();
+
     /**
      * Callback for BLE device scanning (for Lollipop or later)
      */
@@ -81,7 +102,7 @@ public final class BleMidiCentralProvider {
 
             Log.w(TAG, "connectGatt![" + bluetoothDevice + "][" + bluetoothDevice.getName() + "]");
 
-            processScanResults(bluetoothDevice);
+            processScanResults(bluetoothDevice, rssi);
         }
     };
 
@@ -110,6 +131,15 @@ public final class BleMidiCentralProvider {
         this.context = context;
         this.midiCallback = new BleMidiCallback(context);
         this.handler = new Handler(context.getMainLooper());
+        this.reconnectManager = new BleMidiReconnectManager(context, handler, bluetoothAdapter, midiCallback);
+        midiCallback.setReconnectManager(reconnectManager);
+        this.scanScheduler = new BleMidiScanScheduler(handler, new Runnable() {
+            @Override
+            public void run() {
+                restartScan();
+            }
+        });
+        midiCallback.setScanScheduler(scanScheduler);
 
         setDeviceScanCallback();
     }
@@ -132,6 +162,43 @@ public final class BleMidiCentralProvider {
         stopScan();
     }
 
+    /**
+     * Sets the scan policy<br />
+     * The scan mode can be selected on Lollipop or later, the devices before Lollipop always scan with the default mode.
+     *
+     * @param scanPolicy {@link #SCAN_POLICY_LOW_LATENCY}, {@link #SCAN_POLICY_ADAPTIVE} or {@link #SCAN_POLICY_LOW_POWER}
+     * @param idleTimeoutMillis for {@link #SCAN_POLICY_ADAPTIVE}: the period without new devices before backing off to the next mode
+     * @throws IllegalArgumentException if the policy is unknown, or the timeout is not positive
+     */
+    public void setScanPolicy(int scanPolicy, int idleTimeoutMillis) throws IllegalArgumentException {
+        if (scanPolicy != SCAN_POLICY_LOW_LATENCY && scanPolicy != SCAN_POLICY_ADAPTIVE && scanPolicy != SCAN_POLICY_LOW_POWER) {
+            throw new IllegalArgumentException("Unknown scan policy: " + scanPolicy);
+        }
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("idleTimeoutMillis must be positive: " + idleTimeoutMillis);
+        }
+
+        scanScheduler.setScanPolicy(scanPolicy, idleTimeoutMillis);
+    }
+
+    /**
+     * Sets the scan policy, with the default idle timeout(10 seconds)
+     *
+     * @param scanPolicy {@link #SCAN_POLICY_LOW_LATENCY}, {@link #SCAN_POLICY_ADAPTIVE} or {@link #SCAN_POLICY_LOW_POWER}
+     * @throws IllegalArgumentException if the policy is unknown
+     */
+    public void setScanPolicy(int scanPolicy) throws IllegalArgumentException {
+        setScanPolicy(scanPolicy, BleMidiScanScheduler.DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Returns the running scan to low latency mode, such as on user action<br />
+     * Effective with {@link #SCAN_POLICY_ADAPTIVE}, the scan is also returned when a connected device has been dropped.
+     */
+    public void burstScan() {
+        scanScheduler.burst();
+    }
+
     /**
      * Disconnects the specified device
      *
@@ -210,11 +277,54 @@ public final class BleMidiCentralProvider {
         }
     }
 
+    /**
+     * Obtains the manager for connections and reconnections
+     *
+     * @return the manager
+     */
+    @NonNull
+    public BleMidiReconnectManager getReconnectManager() {
+        return reconnectManager;
+    }
+
+    /**
+     * Set if the devices are bonded on connect<br />
+     * MIDI starts without waiting for the bond, if the device permits the unencrypted link.
+     *
+     * @param needsBonding if true, request paring with the connecting device
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public void setNeedsBonding(boolean needsBonding) {
+        midiCallback.setNeedsBonding(needsBonding);
+    }
+
+    /**
+     * Starts bonding with the device before connecting, to avoid the pairing on the first connection
+     *
+     * @param device the device
+     * @return true if the device has been already bonded
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public boolean bondDevice(@NonNull BluetoothDevice device) {
+        return midiCallback.bondDevice(device);
+    }
+
+    /**
+     * Starts bonding with the remembered devices of {@link BleMidiReconnectManager}, which are not bonded yet
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public void bondRememberedDevices() {
+        for (String deviceAddress : reconnectManager.getRememberedDeviceAddresses()) {
+            midiCallback.bondDevice(bluetoothAdapter.getRemoteDevice(deviceAddress));
+        }
+    }
+
     /**
      * Terminates provider
      */
     public void terminate() {
         stopScanDevice();
+        reconnectManager.cancelAll();
         midiCallback.terminate();
     }
 
@@ -227,6 +337,55 @@ public final class BleMidiCentralProvider {
         bluetoothDeviceFoundListener = listener;
     }
 
+    /**
+     * Set the listener for the scan results with RSSI<br />
+     * The listener is called for the new devices, and the devices whose RSSI has been changed, at a bounded rate.
+     *
+     * @param listener the listener
+     */
+    public void setOnMidiDeviceScanResultListener(@Nullable OnMidiDeviceScanResultListener listener) {
+        scanResultListener = listener;
+    }
+
+    /**
+     * Set the listener for the link quality of the connected devices<br />
+     * The link quality is evaluated periodically from the RSSI, the stalls of the incoming Timing Clock and Active Sensing, the failed writes and the supervision timeouts.
+     *
+     * @param listener the listener
+     */
+    public void setOnMidiDeviceLinkQualityListener(@Nullable OnMidiDeviceLinkQualityListener listener) {
+        midiCallback.setOnMidiDeviceLinkQualityListener(listener);
+    }
+
+    /**
+     * Set if the high connection priority is requested again when the link quality has been degraded
+     *
+     * @param enabled true to request, default is true
+     */
+    public void setConnectionPriorityBoostEnabled(boolean enabled) {
+        midiCallback.setConnectionPriorityBoostEnabled(enabled);
+    }
+
+    /**
+     * Obtains the last link quality of the device
+     *
+     * @param midiInputDevice the device
+     * @return the score, 0(worst) to 100(best), or -1 if the device is not attached
+     */
+    public int getLinkQuality(@NonNull MidiInputDevice midiInputDevice) {
+        return midiCallback.getLinkQuality(midiInputDevice.getDeviceAddress());
+    }
+
+    /**
+     * Obtains the last link quality of the device
+     *
+     * @param midiOutputDevice the device
+     * @return the score, 0(worst) to 100(best), or -1 if the device is not attached
+     */
+    public int getLinkQuality(@NonNull MidiOutputDevice midiOutputDevice) {
+        return midiCallback.getLinkQuality(midiOutputDevice.getDeviceAddress());
+    }
+
 
     public void setOnMidiDataListener(OnMidiDataListener listener) {
         onMidiDataListener = listener;
@@ -237,7 +396,8 @@ public final class BleMidiCentralProvider {
     }
 
     /**
-     * Connect the specific ble device
+     * Connect the specific ble device<br />
+     * The direct connections are attempted first, and falls back to the background connection.
      *
      * @param device
      * @return
@@ -252,7 +412,7 @@ public final class BleMidiCentralProvider {
             Log.w(TAG, "connect not the same device[" + device + "][" + d + "]");
         }
 
-        if (d.connectGatt(context, true, midiCallback) != null) {
+        if (reconnectManager.connect(d)) {
             return true;
         }
 
@@ -322,7 +482,7 @@ public final class BleMidiCentralProvider {
                             return;
                         }
 
-                        processScanResults(bluetoothDevice);
+                        processScanResults(bluetoothDevice, result.getRssi());
                     }
                 }
             };
@@ -335,10 +495,13 @@ public final class BleMidiCentralProvider {
      * Start scan ble devices
      */
     private void startScan(int timeoutInMilliSeconds) {
+        // report all devices again in the new scan
+        scanResultAggregator.clear();
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             BluetoothLeScanner bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
             List<ScanFilter> scanFilters = BleMidiDeviceUtils.getBleMidiScanFilters(context);
-            ScanSettings scanSettings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build();
+            ScanSettings scanSettings = new ScanSettings.Builder().setScanMode(scanScheduler.getScanMode()).build();
             bluetoothLeScanner.startScan(scanFilters, scanSettings, scanCallback);
         } else {
             //bluetoothAdapter.startLeScan(BleMidiDeviceUtils.getUuidListForService(context), leScanCallback);
@@ -347,6 +510,7 @@ public final class BleMidiCentralProvider {
 
         // scanning
         notifyMidiScanStatusChanged(true);
+        scanScheduler.onScanStarted();
 
         // start stop scan timer
         triggerStopScanTimer(timeoutInMilliSeconds);
@@ -371,9 +535,32 @@ public final class BleMidiCentralProvider {
             stopScanRunnable = null;
         }
 
+        scanScheduler.onScanStopped();
         notifyMidiScanStatusChanged(false);
     }
 
+    /**
+     * Restarts the running scan with the scan mode selected by the scan policy
+     */
+    private void restartScan() {
+        if (!isScanning || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+
+        try {
+            BluetoothLeScanner bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
+            bluetoothLeScanner.stopScan(scanCallback);
+
+            List<ScanFilter> scanFilters = BleMidiDeviceUtils.getBleMidiScanFilters(context);
+            ScanSettings scanSettings = new ScanSettings.Builder().setScanMode(scanScheduler.getScanMode()).build();
+            bluetoothLeScanner.startScan(scanFilters, scanSettings, scanCallback);
+        } catch (Throwable ignored) {
+            // NullPointerException on Bluetooth is OFF
+        }
+
+        scanScheduler.onScanStarted();
+    }
+
     /**
      * Stop scan ble devices when the specific time is over
      *
@@ -410,18 +597,33 @@ public final class BleMidiCentralProvider {
     }
 
     /**
-     * Process the scanned ble devices
+     * Process the scanned ble devices<br />
+     * The advertisements are aggregated by the device, only new devices and changed RSSI are notified.
      *
      * @param bluetoothDevice
+     * @param rssi the RSSI of the advertisement
      */
-    private void processScanResults(@NonNull final BluetoothDevice bluetoothDevice) {
+    private void processScanResults(@NonNull final BluetoothDevice bluetoothDevice, int rssi) {
+        final int scanResult = scanResultAggregator.onScanResult(bluetoothDevice, rssi, System.currentTimeMillis());
+        if (scanResult == BleMidiScanResultAggregator.RESULT_NONE) {
+            return;
+        }
+        if (scanResult == BleMidiScanResultAggregator.RESULT_NEW_DEVICE) {
+            scanScheduler.onNewDevice();
+        }
+
         if (bluetoothDeviceFoundListener != null) {
             bluetoothDeviceFoundListener.onDeviceFound(bluetoothDevice);
         }
 
-        // Auto connect ble device if it's necessary
+        final OnMidiDeviceScanResultListener listener = scanResultListener;
+        if (listener != null) {
+            listener.onMidiDeviceScanResult(bluetoothDevice, scanResultAggregator.getRssi(bluetoothDevice), scanResult == BleMidiScanResultAggregator.RESULT_NEW_DEVICE);
+        }
+
+        // Auto connect ble device if it's necessary, the reconnect manager keeps one connection attempt for each device
         if (isAutoConnect() && !midiCallback.isConnected(bluetoothDevice)) {
-            bluetoothDevice.connectGatt(BleMidiCentralProvider.this.context, true, midiCallback);
+            reconnectManager.connect(bluetoothDevice);
         }
     }
 
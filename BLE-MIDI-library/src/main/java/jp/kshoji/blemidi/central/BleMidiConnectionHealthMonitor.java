@@ -0,0 +1,358 @@
+package jp.kshoji.blemidi.central;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.kshoji.blemidi.listener.OnMidiDeviceLinkQualityListener;
+
+import static jp.kshoji.blemidi.util.Constants.TAG;
+
+/**
+ * Monitors the link quality of a connection<br />
+ * The RSSI is read periodically, and the score is computed from the RSSI, the stalls of the regular incoming streams(Timing Clock and Active Sensing),
+ * the failed writes, and the supervision timeouts of the previous connections.
+ * When the score has been degraded, the warning is notified, and the high connection priority is requested again if enabled.
+ *
+ * @author K.Shoji
+ */
+final class BleMidiConnectionHealthMonitor {
+    static final int DEFAULT_INTERVAL_MILLIS = 2000;
+
+    // the connection has been dropped by the supervision timeout, not exposed by BluetoothGatt
+    static final int GATT_CONN_TIMEOUT = 0x08;
+    // the supervision timeouts are forgotten after the stable connection
+    static final int STABLE_CONNECTION_MILLIS = 60000;
+
+    private static final int WARNING_THRESHOLD = 50;
+    private static final int RECOVERY_THRESHOLD = 60;
+
+    private static final int RSSI_WORST = -90;
+    private static final int RSSI_BEST = -50;
+    private static final float RSSI_SMOOTHING = 0.3f;
+
+    // the gap in the regular stream, in percent of the average interval
+    private static final int STALL_BEST_PERCENT = 150;
+    private static final int STALL_WORST_PERCENT = 400;
+
+    private static final int MAX_WRITE_FAILURES = 5;
+    private static final int MAX_SUPERVISION_TIMEOUTS = 3;
+
+    private final BleMidiCallback midiCallback;
+    private final Handler handler;
+    private final BluetoothGatt bluetoothGatt;
+    private final String deviceAddress;
+    private final int supervisionTimeouts;
+    private final long connectedAt = System.currentTimeMillis();
+
+    private final RegularStream timingClockStream = new RegularStream(100);
+    private final RegularStream activeSensingStream = new RegularStream(1000);
+    private final AtomicInteger writeFailures = new AtomicInteger();
+
+    private volatile int rssi = Integer.MIN_VALUE;
+    private volatile int linkQuality = 100;
+    private boolean isWarning = false;
+    private boolean isStopped = false;
+
+    private final Runnable evaluateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BleMidiConnectionHealthMonitor.this) {
+                if (isStopped) {
+                    return;
+                }
+
+                evaluate();
+                requestRssi();
+                handler.postDelayed(this, DEFAULT_INTERVAL_MILLIS);
+            }
+        }
+    };
+
+    /**
+     * The incoming messages expected at the regular interval<br />
+     * The gaps are scored against the average interval of the stream, the musical spacing of the other messages is not measured.
+     * Updated on the notification thread, read and reset on the evaluation: a sample may be lost on the race.
+     */
+    private static final class RegularStream {
+        private static final float AVERAGE_SMOOTHING = 0.1f;
+
+        // the gaps longer than this are treated as the stopped stream
+        private final int maxIntervalMillis;
+        private volatile long lastArrivalNanos = 0;
+        private volatile float averageIntervalMillis = 0;
+        private volatile int maxStallPercent = -1;
+
+        /**
+         * Constructor
+         *
+         * @param maxIntervalMillis the maximum interval of the stream
+         */
+        RegularStream(int maxIntervalMillis) {
+            this.maxIntervalMillis = maxIntervalMillis;
+        }
+
+        /**
+         * Called when the message has been arrived
+         *
+         * @param nanos the arrival time
+         */
+        void onArrival(long nanos) {
+            final long last = lastArrivalNanos;
+            lastArrivalNanos = nanos;
+            if (last == 0) {
+                return;
+            }
+
+            final float intervalMillis = (nanos - last) / 1000000f;
+            if (intervalMillis > maxIntervalMillis * 4) {
+                // stopped and restarted
+                averageIntervalMillis = 0;
+                return;
+            }
+
+            final float average = averageIntervalMillis;
+            if (average <= 0) {
+                averageIntervalMillis = intervalMillis;
+                return;
+            }
+
+            final int stallPercent = Math.round(intervalMillis * 100 / average);
+            if (stallPercent > maxStallPercent) {
+                maxStallPercent = stallPercent;
+            }
+            if (intervalMillis <= maxIntervalMillis) {
+                averageIntervalMillis = average + (intervalMillis - average) * AVERAGE_SMOOTHING;
+            }
+        }
+
+        /**
+         * Obtains the largest gap since the last call, and resets it
+         *
+         * @return the gap in percent of the average interval, -1 if not measured
+         */
+        int pollMaxStallPercent() {
+            final int stallPercent = maxStallPercent;
+            maxStallPercent = -1;
+            return stallPercent;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param midiCallback the callback for the listener and the GATT operation queue
+     * @param handler the handler for the periodic evaluation
+     * @param bluetoothGatt the gatt of the connection
+     * @param supervisionTimeouts the supervision timeouts of the previous connections
+     */
+    BleMidiConnectionHealthMonitor(@NonNull BleMidiCallback midiCallback, @NonNull Handler handler, @NonNull BluetoothGatt bluetoothGatt, int supervisionTimeouts) {
+        this.midiCallback = midiCallback;
+        this.handler = handler;
+        this.bluetoothGatt = bluetoothGatt;
+        this.deviceAddress = bluetoothGatt.getDevice().getAddress();
+        this.supervisionTimeouts = supervisionTimeouts;
+    }
+
+    /**
+     * Starts the periodic evaluation
+     */
+    synchronized void start() {
+        isStopped = false;
+        handler.removeCallbacks(evaluateRunnable);
+        requestRssi();
+        handler.postDelayed(evaluateRunnable, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Stops the periodic evaluation
+     */
+    synchronized void stop() {
+        isStopped = true;
+        handler.removeCallbacks(evaluateRunnable);
+    }
+
+    /**
+     * Called on the incoming notification<br />
+     * All Timing Clock and Active Sensing in the packet are measured, spaced by their BLE MIDI timestamps.
+     *
+     * @param data the BLE MIDI packet
+     */
+    void onNotification(@NonNull byte[] data) {
+        if (data.length < 3) {
+            return;
+        }
+
+        final long nanos = System.nanoTime();
+        int timestampHigh = (data[0] & 0x3f) << 7;
+        int timestampLow = -1;
+        int firstTimestamp = -1;
+        boolean isTimestampRead = false;
+        for (int i = 1; i < data.length; i++) {
+            final int midiByte = data[i] & 0xff;
+            if ((midiByte & 0x80) == 0) {
+                // data bytes, including the running status without timestamp
+                isTimestampRead = false;
+                continue;
+            }
+
+            if (!isTimestampRead) {
+                // the timestamp precedes each status byte, wrapped when decreased
+                if ((midiByte & 0x7f) < timestampLow) {
+                    timestampHigh += 1 << 7;
+                }
+                timestampLow = midiByte & 0x7f;
+                isTimestampRead = true;
+                continue;
+            }
+
+            isTimestampRead = false;
+            if (midiByte != 0xf8 && midiByte != 0xfe) {
+                // the irregular messages are not measured
+                continue;
+            }
+
+            final int timestamp = timestampHigh | timestampLow;
+            if (firstTimestamp < 0) {
+                firstTimestamp = timestamp;
+            }
+            final long arrivalNanos = nanos + (timestamp - firstTimestamp) * 1000000L;
+            if (midiByte == 0xf8) {
+                timingClockStream.onArrival(arrivalNanos);
+            } else {
+                activeSensingStream.onArrival(arrivalNanos);
+            }
+        }
+    }
+
+    /**
+     * Called when the write has been failed
+     */
+    void onWriteFailed() {
+        writeFailures.incrementAndGet();
+    }
+
+    /**
+     * Called when the RSSI has been read
+     *
+     * @param rssi the RSSI in dBm
+     */
+    void onRssiRead(int rssi) {
+        final int lastRssi = this.rssi;
+        if (lastRssi == Integer.MIN_VALUE) {
+            this.rssi = rssi;
+        } else {
+            this.rssi = Math.round(lastRssi + (rssi - lastRssi) * RSSI_SMOOTHING);
+        }
+    }
+
+    /**
+     * Obtains the last link quality
+     *
+     * @return the score, 0(worst) to 100(best)
+     */
+    int getLinkQuality() {
+        return linkQuality;
+    }
+
+    /**
+     * Obtains the connected time
+     *
+     * @return the time from the attach, in milliseconds
+     */
+    long getConnectedMillis() {
+        return System.currentTimeMillis() - connectedAt;
+    }
+
+    /**
+     * Reads the RSSI via the GATT operation queue
+     */
+    private void requestRssi() {
+        midiCallback.getGattOperationQueue().enqueue(new BleGattOperationQueue.Operation(deviceAddress, BleGattOperationQueue.TYPE_READ_REMOTE_RSSI) {
+            @Override
+            boolean execute() {
+                return bluetoothGatt.readRemoteRssi();
+            }
+
+            @Override
+            boolean isRetryable() {
+                // read again on the next evaluation
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Computes the score, and notifies the listener
+     */
+    private void evaluate() {
+        final int stallPercent = Math.max(timingClockStream.pollMaxStallPercent(), activeSensingStream.pollMaxStallPercent());
+        final int failures = writeFailures.getAndSet(0);
+        final int currentRssi = rssi;
+
+        float score = 0.4f * (currentRssi == Integer.MIN_VALUE ? 1.0f : ratio(currentRssi, RSSI_WORST, RSSI_BEST));
+        score += 0.3f * (stallPercent < 0 ? 1.0f : 1.0f - ratio(stallPercent, STALL_BEST_PERCENT, STALL_WORST_PERCENT));
+        score += 0.2f * (1.0f - Math.min(failures, MAX_WRITE_FAILURES) / (float) MAX_WRITE_FAILURES);
+        if (getConnectedMillis() < STABLE_CONNECTION_MILLIS) {
+            score += 0.1f * (1.0f - Math.min(supervisionTimeouts, MAX_SUPERVISION_TIMEOUTS) / (float) MAX_SUPERVISION_TIMEOUTS);
+        } else {
+            score += 0.1f;
+        }
+        linkQuality = Math.round(score * 100);
+
+        OnMidiDeviceLinkQualityListener listener = midiCallback.getOnMidiDeviceLinkQualityListener();
+        if (listener != null) {
+            listener.onMidiDeviceLinkQualityChanged(bluetoothGatt.getDevice(), linkQuality, currentRssi == Integer.MIN_VALUE ? 0 : currentRssi);
+        }
+
+        if (!isWarning && linkQuality < WARNING_THRESHOLD) {
+            isWarning = true;
+            Log.w(TAG, "Link quality degraded. device:" + deviceAddress + ", score:" + linkQuality + ", rssi:" + currentRssi + ", stall:" + stallPercent + "%" + ", write failures:" + failures);
+
+            if (midiCallback.isConnectionPriorityBoostEnabled() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                midiCallback.getGattOperationQueue().enqueue(new BleGattOperationQueue.Operation(deviceAddress, BleGattOperationQueue.TYPE_REQUEST_CONNECTION_PRIORITY) {
+                    @Override
+                    boolean execute() {
+                        return bluetoothGatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                    }
+
+                    @Override
+                    boolean hasCallback() {
+                        return false;
+                    }
+                });
+            }
+
+            if (listener != null) {
+                listener.onMidiDeviceLinkQualityWarning(bluetoothGatt.getDevice(), linkQuality);
+            }
+        } else if (isWarning && linkQuality >= RECOVERY_THRESHOLD) {
+            isWarning = false;
+            if (listener != null) {
+                listener.onMidiDeviceLinkQualityRecovered(bluetoothGatt.getDevice(), linkQuality);
+            }
+        }
+    }
+
+    /**
+     * Maps the value to the range
+     *
+     * @param value the value
+     * @param low the value for 0
+     * @param high the value for 1
+     * @return 0 to 1
+     */
+    private static float ratio(int value, int low, int high) {
+        if (value <= low) {
+            return 0.0f;
+        }
+        if (value >= high) {
+            return 1.0f;
+        }
+        return (value - low) / (float) (high - low);
+    }
+}
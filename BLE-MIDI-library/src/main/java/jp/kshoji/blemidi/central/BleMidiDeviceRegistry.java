@@ -0,0 +1,102 @@
+package jp.kshoji.blemidi.central;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Registry of the attached devices, keyed by the device address<br />
+ * The registry is copy-on-write: the modifications publish new immutable snapshots,
+ * so the reads are lock-free and the device set can be returned without copying.
+ *
+ * @param <T> the device type
+ * @author K.Shoji
+ */
+final class BleMidiDeviceRegistry<T> {
+    private volatile Map<String, T> deviceMap = Collections.emptyMap();
+    private volatile Set<T> deviceSet = Collections.emptySet();
+
+    /**
+     * Obtains the device
+     *
+     * @param deviceAddress the device address
+     * @return the device, null if not attached
+     */
+    @Nullable
+    T get(@NonNull String deviceAddress) {
+        return deviceMap.get(deviceAddress);
+    }
+
+    /**
+     * Obtains the snapshot of the attached devices
+     *
+     * @return the unmodifiable set, not affected by later modifications
+     */
+    @NonNull
+    Set<T> getDevices() {
+        return deviceSet;
+    }
+
+    /**
+     * Adds the device, replacing the device with the same address
+     *
+     * @param deviceAddress the device address
+     * @param device the device
+     * @return the replaced device, null if not exists
+     */
+    @Nullable
+    synchronized T put(@NonNull String deviceAddress, @NonNull T device) {
+        Map<String, T> map = new LinkedHashMap<>(deviceMap);
+        T previous = map.put(deviceAddress, device);
+        publish(map);
+        return previous;
+    }
+
+    /**
+     * Removes the device
+     *
+     * @param deviceAddress the device address
+     * @return the removed device, null if not exists
+     */
+    @Nullable
+    synchronized T remove(@NonNull String deviceAddress) {
+        if (!deviceMap.containsKey(deviceAddress)) {
+            return null;
+        }
+
+        Map<String, T> map = new LinkedHashMap<>(deviceMap);
+        T removed = map.remove(deviceAddress);
+        publish(map);
+        return removed;
+    }
+
+    /**
+     * Removes all devices
+     *
+     * @return the removed devices
+     */
+    @NonNull
+    synchronized Collection<T> clear() {
+        Collection<T> removed = deviceSet;
+        deviceMap = Collections.emptyMap();
+        deviceSet = Collections.emptySet();
+        return removed;
+    }
+
+    /**
+     * Publishes the new snapshot
+     *
+     * @param map the modified copy
+     */
+    private void publish(@NonNull Map<String, T> map) {
+        Set<T> set = Collections.unmodifiableSet(new LinkedHashSet<>(map.values()));
+        deviceMap = Collections.unmodifiableMap(map);
+        deviceSet = set;
+    }
+}
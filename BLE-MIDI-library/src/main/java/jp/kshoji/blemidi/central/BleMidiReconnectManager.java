@@ -0,0 +1,383 @@
+package jp.kshoji.blemidi.central;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.content.Context;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.kshoji.blemidi.listener.OnMidiDeviceReconnectListener;
+
+import static jp.kshoji.blemidi.util.Constants.TAG;
+
+/**
+ * Connects BLE MIDI devices, and reconnects the dropped devices without scanning<br />
+ * The connection is attempted with direct connections(autoConnect=false) with exponential backoff,
+ * and falls back to the background connection(autoConnect=true) if the direct connections have been failed.
+ * The recently attached devices are remembered, and reconnected when the connection has been dropped.
+ *
+ * @author K.Shoji
+ */
+public final class BleMidiReconnectManager {
+    private static final int MAX_REMEMBERED_DEVICES = 8;
+    private static final int DIRECT_CONNECT_ATTEMPTS = 4;
+    private static final int DIRECT_CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int INITIAL_BACKOFF_MILLIS = 500;
+    private static final int MAX_BACKOFF_MILLIS = 8000;
+
+    private final Context context;
+    private final Handler handler;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final BleMidiCallback midiCallback;
+
+    // device address -> device, in access order
+    private final LinkedHashMap<String, BluetoothDevice> rememberedDevices = new LinkedHashMap<String, BluetoothDevice>(MAX_REMEMBERED_DEVICES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BluetoothDevice> eldest) {
+            return size() > MAX_REMEMBERED_DEVICES;
+        }
+    };
+    private final Map<String, ConnectionAttempt> connectionAttempts = new HashMap<>();
+
+    private boolean isReconnectEnabled = true;
+    private OnMidiDeviceReconnectListener reconnectListener = null;
+
+    private int reconnectCount = 0;
+    private long totalReconnectMillis = 0;
+    private long lastReconnectMillis = 0;
+
+    /**
+     * Connection attempts for a device
+     */
+    private final class ConnectionAttempt {
+        final BluetoothDevice device;
+        final boolean isReconnection;
+        final long startedAt = System.currentTimeMillis();
+        int attempts = 0;
+        BluetoothGatt bluetoothGatt = null;
+        boolean isFallback = false;
+
+        // the direct connection has not been attached in time
+        final Runnable timeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BleMidiReconnectManager.this) {
+                    if (connectionAttempts.get(device.getAddress()) == ConnectionAttempt.this) {
+                        retry(ConnectionAttempt.this);
+                    }
+                }
+            }
+        };
+
+        final Runnable connectRunnable = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BleMidiReconnectManager.this) {
+                    if (connectionAttempts.get(device.getAddress()) == ConnectionAttempt.this) {
+                        connectDirectly(ConnectionAttempt.this);
+                    }
+                }
+            }
+        };
+
+        /**
+         * Constructor
+         *
+         * @param device the device
+         * @param isReconnection true if the device has been dropped
+         */
+        ConnectionAttempt(@NonNull BluetoothDevice device, boolean isReconnection) {
+            this.device = device;
+            this.isReconnection = isReconnection;
+        }
+
+        /**
+         * Closes the pending connection, and cancels the scheduled tasks
+         */
+        void close() {
+            handler.removeCallbacks(timeoutRunnable);
+            handler.removeCallbacks(connectRunnable);
+            if (bluetoothGatt != null) {
+                bluetoothGatt.disconnect();
+                bluetoothGatt.close();
+                bluetoothGatt = null;
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context the context
+     * @param handler the handler for scheduling the attempts
+     * @param bluetoothAdapter the adapter
+     * @param midiCallback the callback for connections
+     */
+    BleMidiReconnectManager(@NonNull Context context, @NonNull Handler handler, @NonNull BluetoothAdapter bluetoothAdapter, @NonNull BleMidiCallback midiCallback) {
+        this.context = context;
+        this.handler = handler;
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.midiCallback = midiCallback;
+    }
+
+    /**
+     * Connects the device, with direct connections first
+     *
+     * @param device the device
+     * @return true if the connection has been started, or already started
+     */
+    public synchronized boolean connect(@NonNull BluetoothDevice device) {
+        return connect(device, false);
+    }
+
+    /**
+     * Connects the device
+     *
+     * @param device the device
+     * @param isReconnection true if the device has been dropped
+     * @return true if the connection has been started, or already started
+     */
+    private boolean connect(@NonNull BluetoothDevice device, boolean isReconnection) {
+        if (connectionAttempts.containsKey(device.getAddress()) || midiCallback.isConnected(device)) {
+            return true;
+        }
+
+        ConnectionAttempt connectionAttempt = new ConnectionAttempt(device, isReconnection);
+        connectionAttempts.put(device.getAddress(), connectionAttempt);
+        connectDirectly(connectionAttempt);
+        return true;
+    }
+
+    /**
+     * Starts a direct connection, serialized with the other GATT operations<br />
+     * The queue is released when connectGatt() has returned, the pending connection is timed out by this manager.
+     *
+     * @param connectionAttempt the attempt
+     */
+    private void connectDirectly(@NonNull final ConnectionAttempt connectionAttempt) {
+        connectionAttempt.attempts++;
+        midiCallback.getGattOperationQueue().enqueue(new BleGattOperationQueue.Operation(connectionAttempt.device.getAddress(), BleGattOperationQueue.TYPE_CONNECT) {
+            @Override
+            boolean execute() {
+                synchronized (BleMidiReconnectManager.this) {
+                    if (connectionAttempts.get(connectionAttempt.device.getAddress()) != connectionAttempt) {
+                        // cancelled while waiting
+                        return true;
+                    }
+
+                    connectionAttempt.bluetoothGatt = connectionAttempt.device.connectGatt(context, false, midiCallback.newDeviceGattCallback());
+                    if (connectionAttempt.bluetoothGatt == null) {
+                        retry(connectionAttempt);
+                        return true;
+                    }
+
+                    handler.postDelayed(connectionAttempt.timeoutRunnable, DIRECT_CONNECT_TIMEOUT_MILLIS);
+                    return true;
+                }
+            }
+
+            @Override
+            boolean hasCallback() {
+                // don't block the operations of the other devices while connecting
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Closes the failed connection, and schedules the next attempt
+     *
+     * @param connectionAttempt the attempt
+     */
+    private void retry(@NonNull ConnectionAttempt connectionAttempt) {
+        connectionAttempt.close();
+
+        if (connectionAttempt.attempts >= DIRECT_CONNECT_ATTEMPTS) {
+            // the background connection waits until the device is available, without timeout
+            Log.w(TAG, "direct connections failed, fall back to autoConnect[" + connectionAttempt.device + "]");
+            connectionAttempt.attempts++;
+            connectionAttempt.isFallback = true;
+            connectionAttempt.bluetoothGatt = connectionAttempt.device.connectGatt(context, true, midiCallback.newDeviceGattCallback());
+            if (connectionAttempt.bluetoothGatt == null) {
+                connectionAttempts.remove(connectionAttempt.device.getAddress());
+                return;
+            }
+
+            final OnMidiDeviceReconnectListener listener = reconnectListener;
+            if (listener != null) {
+                listener.onMidiDeviceReconnectFallback(connectionAttempt.device);
+            }
+            return;
+        }
+
+        final int backoffMillis = Math.min(INITIAL_BACKOFF_MILLIS << (connectionAttempt.attempts - 1), MAX_BACKOFF_MILLIS);
+        handler.postDelayed(connectionAttempt.connectRunnable, backoffMillis);
+    }
+
+    /**
+     * Called when the MIDI device has been attached
+     *
+     * @param device the device
+     */
+    synchronized void onAttached(@NonNull BluetoothDevice device) {
+        rememberedDevices.put(device.getAddress(), device);
+
+        ConnectionAttempt connectionAttempt = connectionAttempts.remove(device.getAddress());
+        if (connectionAttempt == null) {
+            return;
+        }
+
+        // the connected gatt is owned by BleMidiCallback now
+        handler.removeCallbacks(connectionAttempt.timeoutRunnable);
+        handler.removeCallbacks(connectionAttempt.connectRunnable);
+
+        if (connectionAttempt.isReconnection) {
+            lastReconnectMillis = System.currentTimeMillis() - connectionAttempt.startedAt;
+            totalReconnectMillis += lastReconnectMillis;
+            reconnectCount++;
+
+            final OnMidiDeviceReconnectListener listener = reconnectListener;
+            if (listener != null) {
+                listener.onMidiDeviceReconnected(device, lastReconnectMillis, connectionAttempt.attempts);
+            }
+        }
+    }
+
+    /**
+     * Called when the connection has been disconnected
+     *
+     * @param bluetoothGatt the gatt
+     * @param wasAttached true if the MIDI device had been attached: the connection has been dropped
+     */
+    synchronized void onDisconnected(@NonNull BluetoothGatt bluetoothGatt, boolean wasAttached) {
+        final BluetoothDevice device = bluetoothGatt.getDevice();
+        ConnectionAttempt connectionAttempt = connectionAttempts.get(device.getAddress());
+        if (connectionAttempt != null) {
+            if (connectionAttempt.bluetoothGatt == bluetoothGatt && !connectionAttempt.isFallback) {
+                // the direct connection failed
+                retry(connectionAttempt);
+            }
+            return;
+        }
+
+        if (wasAttached && isReconnectEnabled && rememberedDevices.containsKey(device.getAddress())) {
+            Log.w(TAG, "reconnect[" + device + "]");
+            connect(device, true);
+        }
+    }
+
+    /**
+     * Cancels the connection attempts for the device, called when the device is disconnected by the application
+     *
+     * @param deviceAddress the device address
+     */
+    synchronized void cancel(@NonNull String deviceAddress) {
+        ConnectionAttempt connectionAttempt = connectionAttempts.remove(deviceAddress);
+        if (connectionAttempt != null) {
+            connectionAttempt.close();
+        }
+    }
+
+    /**
+     * Cancels all connection attempts
+     */
+    public synchronized void cancelAll() {
+        for (ConnectionAttempt connectionAttempt : connectionAttempts.values()) {
+            connectionAttempt.close();
+        }
+        connectionAttempts.clear();
+    }
+
+    /**
+     * Connects the remembered devices not connected, without scanning
+     */
+    public synchronized void reconnectRememberedDevices() {
+        for (BluetoothDevice device : rememberedDevices.values()) {
+            connect(device, true);
+        }
+    }
+
+    /**
+     * Remembers the device to reconnect, such as the device address stored by the application
+     *
+     * @param deviceAddress the device address
+     * @throws IllegalArgumentException if the address is invalid
+     */
+    public synchronized void rememberDevice(@NonNull String deviceAddress) throws IllegalArgumentException {
+        rememberedDevices.put(deviceAddress, bluetoothAdapter.getRemoteDevice(deviceAddress));
+    }
+
+    /**
+     * Forgets the device, the device will not be reconnected
+     *
+     * @param deviceAddress the device address
+     */
+    public synchronized void forgetDevice(@NonNull String deviceAddress) {
+        rememberedDevices.remove(deviceAddress);
+        cancel(deviceAddress);
+    }
+
+    /**
+     * Obtains the addresses of remembered devices, the most recently attached device last
+     *
+     * @return the list of device address
+     */
+    @NonNull
+    public synchronized List<String> getRememberedDeviceAddresses() {
+        return new ArrayList<>(rememberedDevices.keySet());
+    }
+
+    /**
+     * Sets if the dropped devices are reconnected automatically
+     *
+     * @param reconnectEnabled true to reconnect(default)
+     */
+    public synchronized void setReconnectEnabled(boolean reconnectEnabled) {
+        isReconnectEnabled = reconnectEnabled;
+    }
+
+    /**
+     * Sets the listener for reconnections
+     *
+     * @param reconnectListener the listener
+     */
+    public synchronized void setOnMidiDeviceReconnectListener(@Nullable OnMidiDeviceReconnectListener reconnectListener) {
+        this.reconnectListener = reconnectListener;
+    }
+
+    /**
+     * Obtains the number of successful reconnections
+     *
+     * @return the number of reconnections
+     */
+    public synchronized int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /**
+     * Obtains the time-to-reconnect of the last reconnection
+     *
+     * @return the time in milliseconds, 0 if not reconnected yet
+     */
+    public synchronized long getLastReconnectMillis() {
+        return lastReconnectMillis;
+    }
+
+    /**
+     * Obtains the average time-to-reconnect
+     *
+     * @return the time in milliseconds, 0 if not reconnected yet
+     */
+    public synchronized long getAverageReconnectMillis() {
+        return reconnectCount == 0 ? 0 : totalReconnectMillis / reconnectCount;
+    }
+}
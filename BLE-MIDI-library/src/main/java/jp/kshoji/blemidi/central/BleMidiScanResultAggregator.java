@@ -0,0 +1,100 @@
+package jp.kshoji.blemidi.central;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Aggregates the scan results by device address<br />
+ * The advertisements received many times per second are reduced to the new devices,
+ * and the devices whose smoothed RSSI has been changed, at most once per the interval for each device.
+ *
+ * @author K.Shoji
+ */
+final class BleMidiScanResultAggregator {
+    private static final int RSSI_CHANGE_THRESHOLD = 6;
+    private static final int MIN_EMIT_INTERVAL_MILLIS = 1000;
+    // the weight of new RSSI for the exponential moving average
+    private static final float RSSI_SMOOTHING_FACTOR = 0.25f;
+
+    /**
+     * Scan status of a device
+     */
+    private static final class ScannedDevice {
+        float smoothedRssi;
+        int emittedRssi;
+        long emittedAt;
+    }
+
+    private final Map<String, ScannedDevice> scannedDevices = new HashMap<>();
+
+    /**
+     * Result of {@link #onScanResult(BluetoothDevice, int, long)}: not changed
+     */
+    static final int RESULT_NONE = 0;
+    /**
+     * Result of {@link #onScanResult(BluetoothDevice, int, long)}: the device has been found first
+     */
+    static final int RESULT_NEW_DEVICE = 1;
+    /**
+     * Result of {@link #onScanResult(BluetoothDevice, int, long)}: the RSSI has been changed
+     */
+    static final int RESULT_RSSI_CHANGED = 2;
+
+    /**
+     * Updates the device with the scan result
+     *
+     * @param device the device
+     * @param rssi the RSSI of the advertisement
+     * @param now the current time in milliseconds
+     * @return {@link #RESULT_NONE}, {@link #RESULT_NEW_DEVICE} or {@link #RESULT_RSSI_CHANGED}
+     */
+    synchronized int onScanResult(@NonNull BluetoothDevice device, int rssi, long now) {
+        ScannedDevice scannedDevice = scannedDevices.get(device.getAddress());
+        if (scannedDevice == null) {
+            scannedDevice = new ScannedDevice();
+            scannedDevice.smoothedRssi = rssi;
+            scannedDevice.emittedRssi = rssi;
+            scannedDevice.emittedAt = now;
+            scannedDevices.put(device.getAddress(), scannedDevice);
+            return RESULT_NEW_DEVICE;
+        }
+
+        scannedDevice.smoothedRssi += (rssi - scannedDevice.smoothedRssi) * RSSI_SMOOTHING_FACTOR;
+        if (now - scannedDevice.emittedAt < MIN_EMIT_INTERVAL_MILLIS) {
+            return RESULT_NONE;
+        }
+
+        final int smoothedRssi = Math.round(scannedDevice.smoothedRssi);
+        if (Math.abs(smoothedRssi - scannedDevice.emittedRssi) < RSSI_CHANGE_THRESHOLD) {
+            return RESULT_NONE;
+        }
+
+        scannedDevice.emittedRssi = smoothedRssi;
+        scannedDevice.emittedAt = now;
+        return RESULT_RSSI_CHANGED;
+    }
+
+    /**
+     * Obtains the smoothed RSSI of the device
+     *
+     * @param device the device
+     * @return the RSSI in dBm, 0 if not scanned
+     */
+    synchronized int getRssi(@NonNull BluetoothDevice device) {
+        ScannedDevice scannedDevice = scannedDevices.get(device.getAddress());
+        if (scannedDevice == null) {
+            return 0;
+        }
+        return Math.round(scannedDevice.smoothedRssi);
+    }
+
+    /**
+     * Forgets all devices, called on starting a new scan
+     */
+    synchronized void clear() {
+        scannedDevices.clear();
+    }
+}
@@ -0,0 +1,146 @@
+package jp.kshoji.blemidi.central;
+
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+
+/**
+ * Selects the scan mode with the scan policy<br />
+ * With {@link BleMidiCentralProvider#SCAN_POLICY_ADAPTIVE}, the scan starts in low latency mode,
+ * and backs off to balanced and low power mode after the period without new devices.
+ * The scan bursts back to low latency mode on user action, or on a drop of the device.
+ *
+ * @author K.Shoji
+ */
+final class BleMidiScanScheduler {
+    static final int DEFAULT_IDLE_TIMEOUT_MILLIS = 10000;
+
+    // scan modes for each back off level
+    private static final int[] ADAPTIVE_SCAN_MODES = {
+            ScanSettings.SCAN_MODE_LOW_LATENCY,
+            ScanSettings.SCAN_MODE_BALANCED,
+            ScanSettings.SCAN_MODE_LOW_POWER
+    };
+
+    private final Handler handler;
+    private final Runnable restartScanRunnable;
+
+    private int scanPolicy = BleMidiCentralProvider.SCAN_POLICY_LOW_LATENCY;
+    private int idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private int backOffLevel = 0;
+    private boolean isScanning = false;
+
+    private final Runnable backOffRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BleMidiScanScheduler.this) {
+                if (!isScanning || scanPolicy != BleMidiCentralProvider.SCAN_POLICY_ADAPTIVE || backOffLevel >= ADAPTIVE_SCAN_MODES.length - 1) {
+                    return;
+                }
+
+                backOffLevel++;
+                restartScanRunnable.run();
+            }
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param handler the handler for scheduling the back off
+     * @param restartScanRunnable restarts the running scan with {@link #getScanMode()}
+     */
+    BleMidiScanScheduler(@NonNull Handler handler, @NonNull Runnable restartScanRunnable) {
+        this.handler = handler;
+        this.restartScanRunnable = restartScanRunnable;
+    }
+
+    /**
+     * Sets the scan policy
+     *
+     * @param scanPolicy the policy
+     * @param idleTimeoutMillis the period without new devices before backing off
+     */
+    synchronized void setScanPolicy(int scanPolicy, int idleTimeoutMillis) {
+        final int lastScanMode = getScanMode();
+        this.scanPolicy = scanPolicy;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        backOffLevel = 0;
+
+        if (isScanning) {
+            scheduleBackOff();
+            if (getScanMode() != lastScanMode) {
+                restartScanRunnable.run();
+            }
+        }
+    }
+
+    /**
+     * Obtains the scan mode for the current policy
+     *
+     * @return the scan mode of {@link android.bluetooth.le.ScanSettings}
+     */
+    synchronized int getScanMode() {
+        switch (scanPolicy) {
+            case BleMidiCentralProvider.SCAN_POLICY_ADAPTIVE:
+                return ADAPTIVE_SCAN_MODES[backOffLevel];
+            case BleMidiCentralProvider.SCAN_POLICY_LOW_POWER:
+                return ScanSettings.SCAN_MODE_LOW_POWER;
+            default:
+                return ScanSettings.SCAN_MODE_LOW_LATENCY;
+        }
+    }
+
+    /**
+     * Schedules the next back off
+     */
+    private void scheduleBackOff() {
+        handler.removeCallbacks(backOffRunnable);
+        if (scanPolicy == BleMidiCentralProvider.SCAN_POLICY_ADAPTIVE) {
+            handler.postDelayed(backOffRunnable, idleTimeoutMillis);
+        }
+    }
+
+    /**
+     * Called when the scan has been started, or restarted with the new scan mode
+     */
+    synchronized void onScanStarted() {
+        isScanning = true;
+        scheduleBackOff();
+    }
+
+    /**
+     * Called when the scan has been stopped
+     */
+    synchronized void onScanStopped() {
+        isScanning = false;
+        backOffLevel = 0;
+        handler.removeCallbacks(backOffRunnable);
+    }
+
+    /**
+     * Called when a new device has been found, the back off is postponed
+     */
+    synchronized void onNewDevice() {
+        if (isScanning) {
+            scheduleBackOff();
+        }
+    }
+
+    /**
+     * Returns to low latency mode, on user action or on a drop of the device
+     */
+    synchronized void burst() {
+        if (!isScanning || scanPolicy != BleMidiCentralProvider.SCAN_POLICY_ADAPTIVE) {
+            return;
+        }
+
+        if (backOffLevel == 0) {
+            scheduleBackOff();
+            return;
+        }
+
+        backOffLevel = 0;
+        restartScanRunnable.run();
+    }
+}
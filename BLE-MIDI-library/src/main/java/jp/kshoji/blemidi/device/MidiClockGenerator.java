@@ -0,0 +1,271 @@
+package jp.kshoji.blemidi.device;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * MIDI Clock master<br />
+ * Generates Timing Clock(24 ticks per quarter note) to the {@link jp.kshoji.blemidi.device.MidiOutputDevice}s.<br />
+ * Each tick is scheduled from the start time with {@link System#nanoTime()}, so the jitter of the thread doesn't accumulate,
+ * and the BLE MIDI timestamp of the tick is the scheduled time, not the sent time.<br />
+ * One generator can drive several output devices.
+ *
+ * @author K.Shoji
+ */
+public final class MidiClockGenerator {
+    private static final int TICKS_PER_QUARTER_NOTE = 24;
+    private static final int TICKS_PER_SONG_POSITION = 6;
+    private static final double MIN_TEMPO = 1.0;
+    private static final double MAX_TEMPO = 1000.0;
+
+    private final List<MidiOutputDevice> midiOutputDevices = new CopyOnWriteArrayList<>();
+
+    private final Object clockLock = new Object();
+    private double tempo;
+    private double tickIntervalNanos;
+    private long tickBaseNanos;
+    private long tickCountFromBase;
+    private long lastTickNanos;
+    private long ticksFromSongStart;
+
+    // for converting nanoTime to the BLE MIDI timestamp
+    private long nanoTimeOrigin;
+    private long currentTimeMillisOrigin;
+
+    private volatile Thread clockThread = null;
+    private volatile boolean isRunning = false;
+
+    /**
+     * Constructor
+     *
+     * @param tempo the tempo in BPM
+     * @throws IllegalArgumentException if the tempo is out of range
+     */
+    public MidiClockGenerator(double tempo) throws IllegalArgumentException {
+        setTempo(tempo);
+    }
+
+    /**
+     * Adds the device to send the clock
+     *
+     * @param midiOutputDevice the device
+     */
+    public void addMidiOutputDevice(@NonNull MidiOutputDevice midiOutputDevice) {
+        midiOutputDevices.add(midiOutputDevice);
+    }
+
+    /**
+     * Removes the device to send the clock
+     *
+     * @param midiOutputDevice the device
+     */
+    public void removeMidiOutputDevice(@NonNull MidiOutputDevice midiOutputDevice) {
+        midiOutputDevices.remove(midiOutputDevice);
+    }
+
+    /**
+     * Changes the tempo. While playing, the new tempo applies from the next tick.
+     *
+     * @param tempo the tempo in BPM
+     * @throws IllegalArgumentException if the tempo is out of range
+     */
+    public void setTempo(double tempo) throws IllegalArgumentException {
+        if (!(tempo >= MIN_TEMPO && tempo <= MAX_TEMPO)) {
+            throw new IllegalArgumentException("Tempo out of range: " + tempo);
+        }
+
+        synchronized (clockLock) {
+            this.tempo = tempo;
+            tickIntervalNanos = 60.0 * 1000000000.0 / (tempo * TICKS_PER_QUARTER_NOTE);
+
+            if (tickCountFromBase > 0) {
+                // rebase the schedule at the last tick
+                tickBaseNanos = lastTickNanos;
+                tickCountFromBase = 1;
+            }
+        }
+        LockSupport.unpark(clockThread);
+    }
+
+    /**
+     * Obtains the tempo
+     *
+     * @return the tempo in BPM
+     */
+    public double getTempo() {
+        synchronized (clockLock) {
+            return tempo;
+        }
+    }
+
+    /**
+     * Checks if the clock is running
+     *
+     * @return true if playing
+     */
+    public boolean isPlaying() {
+        return isRunning;
+    }
+
+    /**
+     * Obtains the current Song Position
+     *
+     * @return the position in MIDI beats(sixteenth notes)
+     */
+    public int getSongPosition() {
+        synchronized (clockLock) {
+            return (int) (ticksFromSongStart / TICKS_PER_SONG_POSITION);
+        }
+    }
+
+    /**
+     * Sends Start, and starts the clock from the beginning of the song<br />
+     * Nothing is done while playing.
+     */
+    public void start() {
+        startClock(0xfa);
+    }
+
+    /**
+     * Sends Continue, and starts the clock from the current Song Position<br />
+     * Nothing is done while playing.
+     */
+    public void continuePlaying() {
+        startClock(0xfb);
+    }
+
+    /**
+     * Sends Stop, and stops the clock
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (clockLock) {
+            if (!isRunning) {
+                return;
+            }
+            isRunning = false;
+            thread = clockThread;
+            clockThread = null;
+        }
+
+        LockSupport.unpark(thread);
+        try {
+            if (thread != Thread.currentThread()) {
+                thread.join();
+            }
+        } catch (InterruptedException ignored) {
+        }
+
+        sendRealTimeMessage(0xfc, System.currentTimeMillis());
+    }
+
+    /**
+     * Sends Song Position Pointer, while stopped
+     *
+     * @param position 0-16383, in MIDI beats(sixteenth notes)
+     * @throws IllegalStateException if playing
+     */
+    public void setSongPosition(int position) throws IllegalStateException {
+        synchronized (clockLock) {
+            if (isRunning) {
+                throw new IllegalStateException("Song position can't be changed while playing.");
+            }
+            ticksFromSongStart = (long) (position & 0x3fff) * TICKS_PER_SONG_POSITION;
+        }
+
+        for (MidiOutputDevice midiOutputDevice : midiOutputDevices) {
+            midiOutputDevice.sendMidiSongPositionPointer(position & 0x3fff);
+        }
+    }
+
+    /**
+     * Starts the clock thread
+     *
+     * @param message Start or Continue
+     */
+    private void startClock(int message) {
+        final Thread thread;
+        synchronized (clockLock) {
+            if (isRunning) {
+                return;
+            }
+
+            if (message == 0xfa) {
+                // Start: from the beginning of the song
+                ticksFromSongStart = 0;
+            }
+
+            nanoTimeOrigin = System.nanoTime();
+            currentTimeMillisOrigin = System.currentTimeMillis();
+
+            // the first tick follows the Start / Continue immediately
+            tickBaseNanos = nanoTimeOrigin;
+            tickCountFromBase = 0;
+            lastTickNanos = nanoTimeOrigin;
+
+            isRunning = true;
+            thread = new Thread(new ClockRunnable(), "MidiClockThread");
+            thread.setPriority(Thread.MAX_PRIORITY);
+            clockThread = thread;
+        }
+
+        sendRealTimeMessage(message, currentTimeMillisOrigin);
+        thread.start();
+    }
+
+    /**
+     * Sends the System Real-Time message to all devices
+     *
+     * @param message the message
+     * @param timeMillis the time of the message, in {@link System#currentTimeMillis()} base
+     */
+    private void sendRealTimeMessage(int message, long timeMillis) {
+        for (MidiOutputDevice midiOutputDevice : midiOutputDevices) {
+            midiOutputDevice.sendMidiMessageAt(message, timeMillis);
+        }
+    }
+
+    /**
+     * Runnable for clock ticks
+     */
+    private class ClockRunnable implements Runnable {
+        @Override
+        public void run() {
+            while (isRunning) {
+                final long tickNanos;
+                synchronized (clockLock) {
+                    tickNanos = tickBaseNanos + (long) (tickCountFromBase * tickIntervalNanos);
+                }
+
+                final long waitNanos = tickNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    // re-calculate after waking up, the tempo may be changed
+                    LockSupport.parkNanos(waitNanos);
+                    continue;
+                }
+
+                synchronized (clockLock) {
+                    if (!isRunning) {
+                        break;
+                    }
+
+                    if (-waitNanos > tickIntervalNanos * TICKS_PER_QUARTER_NOTE) {
+                        // the thread has been stopped too long: skip the missed ticks and restart the schedule
+                        tickBaseNanos = System.nanoTime();
+                        tickCountFromBase = 0;
+                        continue;
+                    }
+
+                    lastTickNanos = tickNanos;
+                    tickCountFromBase++;
+                    ticksFromSongStart++;
+                }
+
+                sendRealTimeMessage(0xf8, currentTimeMillisOrigin + (tickNanos - nanoTimeOrigin) / 1000000);
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@ import android.support.annotation.Nullable;
 
 import jp.kshoji.blemidi.listener.OnMidiDataListener;
 import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+import jp.kshoji.blemidi.util.BleMidiParser;
 
 /**
  * Represents BLE MIDI Input Device
@@ -20,6 +21,16 @@ public abstract class MidiInputDevice {
      */
     public abstract void setOnMidiInputEventListener(@Nullable OnMidiInputEventListener midiInputEventListener);
 
+    /**
+     * Obtains the parser decoding the messages from this device, to configure the decoding
+     *
+     * @return the parser, null if the device doesn't decode the messages
+     */
+    @Nullable
+    public BleMidiParser getMidiParser() {
+        return null;
+    }
+
     /**
      * Obtains the device name
      *
@@ -1,6 +1,13 @@
 package jp.kshoji.blemidi.device;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import jp.kshoji.blemidi.util.MidiMessageTransformer;
+import jp.kshoji.blemidi.util.ReusableByteArrayOutputStream;
 
 /**
  * Represents BLE MIDI Output Device
@@ -11,6 +18,22 @@ public abstract class MidiOutputDevice {
 
     public static final int MAX_TIMESTAMP = 8192;
 
+    // BLE can't send more than 20 bytes by default MTU.
+    private static final int MAX_PACKET_LENGTH = 20;
+
+    // output lanes: System Real-Time messages, other short messages, and SysEx packets
+    private final Object laneLock = new Object();
+    private final Queue<byte[]> realTimeLane = new ArrayDeque<>();
+    private final Queue<byte[]> messageLane = new ArrayDeque<>();
+    private final Queue<byte[]> bulkLane = new ArrayDeque<>();
+    private boolean isTransferring = false;
+    private boolean isInSystemExclusive = false;
+
+    private final ReusableByteArrayOutputStream systemExclusiveBuffer = new ReusableByteArrayOutputStream();
+    private final ReusableByteArrayOutputStream packetBuffer = new ReusableByteArrayOutputStream(MAX_PACKET_LENGTH);
+
+    private volatile MidiMessageTransformer midiMessageTransformer = null;
+
     /**
      * Transfer data
      *
@@ -40,16 +63,36 @@ public abstract class MidiOutputDevice {
         return getDeviceName();
     }
 
+    /**
+     * Sets {@link jp.kshoji.blemidi.util.MidiMessageTransformer}<br />
+     * The channel messages are transformed before sending, the same way as the received messages with {@link jp.kshoji.blemidi.util.BleMidiParser#setMidiMessageTransformer(MidiMessageTransformer)}.
+     *
+     * @param midiMessageTransformer the transformer, null to send the messages as specified
+     */
+    public final void setMidiMessageTransformer(@Nullable MidiMessageTransformer midiMessageTransformer) {
+        this.midiMessageTransformer = midiMessageTransformer;
+    }
+
     /**
      * Sends MIDI message to output device.
      *
      * @param byte1 the first byte
      */
     private void sendMidiMessage(int byte1) {
-        long timestamp = System.currentTimeMillis() % MAX_TIMESTAMP;
+        sendMidiMessageAt(byte1, System.currentTimeMillis());
+    }
+
+    /**
+     * Sends 1 byte MIDI message to output device, with the specified timestamp.
+     *
+     * @param byte1 the first byte
+     * @param timeMillis the time of the message, in {@link System#currentTimeMillis()} base
+     */
+    void sendMidiMessageAt(int byte1, long timeMillis) {
+        long timestamp = timeMillis % MAX_TIMESTAMP;
         byte[] writeBuffer = new byte[] { (byte) (0x80 | ((timestamp >> 7) & 0x3f)), (byte) (0x80 | (timestamp & 0x7f)), (byte) byte1 };
 
-        transferData(writeBuffer);
+        enqueueMessagePacket(writeBuffer, byte1 >= 0xf8);
     }
 
     /**
@@ -59,6 +102,16 @@ public abstract class MidiOutputDevice {
      * @param byte2 the second byte
      */
     private void sendMidiMessage(int byte1, int byte2) {
+        final MidiMessageTransformer transformer = midiMessageTransformer;
+        if (transformer != null && byte1 < 0xf0) {
+            final int transformed = transformer.transform(byte1, byte2, 0);
+            if (transformed == MidiMessageTransformer.DROPPED) {
+                return;
+            }
+            byte1 = transformed >> 16;
+            byte2 = (transformed >> 8) & 0xff;
+        }
+
         byte[] writeBuffer = new byte[4];
         long timestamp = System.currentTimeMillis() % MAX_TIMESTAMP;
 
@@ -67,7 +120,7 @@ public abstract class MidiOutputDevice {
         writeBuffer[2] = (byte) byte1;
         writeBuffer[3] = (byte) byte2;
 
-        transferData(writeBuffer);
+        enqueueMessagePacket(writeBuffer, false);
     }
 
     /**
@@ -78,6 +131,17 @@ public abstract class MidiOutputDevice {
      * @param byte3 the third byte
      */
     private void sendMidiMessage(int byte1, int byte2, int byte3) {
+        final MidiMessageTransformer transformer = midiMessageTransformer;
+        if (transformer != null && byte1 < 0xf0) {
+            final int transformed = transformer.transform(byte1, byte2, byte3);
+            if (transformed == MidiMessageTransformer.DROPPED) {
+                return;
+            }
+            byte1 = transformed >> 16;
+            byte2 = (transformed >> 8) & 0xff;
+            byte3 = transformed & 0xff;
+        }
+
         byte[] writeBuffer = new byte[5];
         long timestamp = System.currentTimeMillis() % MAX_TIMESTAMP;
 
@@ -87,47 +151,158 @@ public abstract class MidiOutputDevice {
         writeBuffer[3] = (byte) byte2;
         writeBuffer[4] = (byte) byte3;
 
-        transferData(writeBuffer);
+        enqueueMessagePacket(writeBuffer, false);
     }
 
     /**
-     * SysEx
+     * Enqueues the single message packet, and transfers it
      *
-     * @param systemExclusive : start with 'F0', and end with 'F7'
+     * @param packet header, timestamp and the message
+     * @param isRealTime true if the message is System Real-Time
      */
-    public final void sendMidiSystemExclusive(@NonNull byte[] systemExclusive) {
-        byte[] timestampAddedSystemExclusive = new byte[systemExclusive.length + 2];
-        System.arraycopy(systemExclusive, 0, timestampAddedSystemExclusive, 1, systemExclusive.length);
+    private void enqueueMessagePacket(@NonNull byte[] packet, boolean isRealTime) {
+        synchronized (laneLock) {
+            if (isRealTime) {
+                realTimeLane.add(packet);
+            } else {
+                messageLane.add(packet);
+            }
+        }
 
-        long timestamp = System.currentTimeMillis() % MAX_TIMESTAMP;
+        transferQueuedPackets();
+    }
 
-        // extend a byte for timestamp LSB, before the last byte('F7')
-        timestampAddedSystemExclusive[systemExclusive.length + 1] = systemExclusive[systemExclusive.length - 1];
-        // set first byte to timestamp LSB
-        timestampAddedSystemExclusive[0] = (byte) (0x80 | (timestamp & 0x7f));
+    /**
+     * Transfers queued packets, with the priority order: System Real-Time messages &gt; other short messages &gt; SysEx packets.<br />
+     * If another thread is already transferring, the packets will be transferred by the thread, and this method returns immediately.<br />
+     * System Real-Time messages are interleaved between SysEx packets, other messages wait for the end of current SysEx (BLE MIDI specification).
+     */
+    private void transferQueuedPackets() {
+        synchronized (laneLock) {
+            if (isTransferring) {
+                return;
+            }
+            isTransferring = true;
+        }
 
-        // split into 20 bytes. BLE can't send more than 20 bytes by default MTU.
-        byte[] writeBuffer = new byte[20];
-        for (int i = 0; i < timestampAddedSystemExclusive.length; i += 19) {
-            // Don't send 0xF7 timestamp LSB inside of SysEx(MIDI parser will fail) 0x7f -> 0x7e
-            timestampAddedSystemExclusive[systemExclusive.length] = (byte) (0x80 | (timestamp & 0x7e));
+        try {
+            while (true) {
+                byte[] packet;
+                synchronized (laneLock) {
+                    packet = pollNextPacket();
+                    if (packet == null) {
+                        isTransferring = false;
+                        return;
+                    }
+                }
+
+                transferData(packet);
+            }
+        } catch (RuntimeException e) {
+            synchronized (laneLock) {
+                isTransferring = false;
+            }
+            throw e;
+        }
+    }
 
-            if (i + 19 <= timestampAddedSystemExclusive.length) {
-                System.arraycopy(timestampAddedSystemExclusive, i, writeBuffer, 1, 19);
-            } else {
-                // last message
-                writeBuffer = new byte[timestampAddedSystemExclusive.length - i + 1];
+    /**
+     * Obtains the next packet to transfer, must be called with laneLock
+     *
+     * @return null if no packet queued
+     */
+    private byte[] pollNextPacket() {
+        Queue<byte[]> lane = selectMessageLane();
+        if (lane == null) {
+            byte[] packet = bulkLane.poll();
+            if (packet != null) {
+                // SysEx continues until 'F7'
+                isInSystemExclusive = (packet[packet.length - 1] & 0xff) != 0xf7;
+            }
+            return packet;
+        }
 
-                System.arraycopy(timestampAddedSystemExclusive, i, writeBuffer, 1, timestampAddedSystemExclusive.length - i);
+        // pack the messages which have the same header into one packet
+        byte[] firstPacket = lane.poll();
+        packetBuffer.reset();
+        packetBuffer.write(firstPacket, 0, firstPacket.length);
+        int lastTimestamp = firstPacket[1] & 0x7f;
+
+        Queue<byte[]> nextLane = selectMessageLane();
+        while (nextLane != null) {
+            byte[] nextPacket = nextLane.peek();
+            if (nextPacket[0] != firstPacket[0] || packetBuffer.size() + nextPacket.length - 1 > MAX_PACKET_LENGTH) {
+                break;
             }
 
-            // timestamp MSB
-            writeBuffer[0] = (byte) (0x80 | ((timestamp >> 7) & 0x3f));
+            // the lanes are prioritized, so the timestamp may go back: the receiver treats it as the wrap around of the timestamp
+            final int nextTimestamp = nextPacket[1] & 0x7f;
+            if (nextTimestamp < lastTimestamp) {
+                break;
+            }
 
-            transferData(writeBuffer);
+            nextLane.poll();
+            packetBuffer.write(nextPacket, 1, nextPacket.length - 1);
+            lastTimestamp = nextTimestamp;
+            nextLane = selectMessageLane();
+        }
 
-            timestamp = System.currentTimeMillis() % MAX_TIMESTAMP;
+        if (packetBuffer.size() == firstPacket.length) {
+            return firstPacket;
+        }
+        return packetBuffer.toByteArray();
+    }
+
+    /**
+     * Selects the lane of short messages to transfer, must be called with laneLock
+     *
+     * @return null if no message can be transferred now
+     */
+    private Queue<byte[]> selectMessageLane() {
+        if (!realTimeLane.isEmpty()) {
+            return realTimeLane;
         }
+        if (!isInSystemExclusive && !messageLane.isEmpty()) {
+            return messageLane;
+        }
+        return null;
+    }
+
+    /**
+     * SysEx<br />
+     * The message is split into packets, and transferred in the bulk lane. System Real-Time messages sent while transferring are interleaved between the packets.
+     *
+     * @param systemExclusive : start with 'F0', and end with 'F7'
+     */
+    public final void sendMidiSystemExclusive(@NonNull byte[] systemExclusive) {
+        synchronized (laneLock) {
+            long timestamp = System.currentTimeMillis() % MAX_TIMESTAMP;
+
+            // set first byte to timestamp LSB, and extend a byte for timestamp LSB before the last byte('F7')
+            systemExclusiveBuffer.reset();
+            systemExclusiveBuffer.write(0x80 | (int) (timestamp & 0x7f));
+            systemExclusiveBuffer.write(systemExclusive, 0, systemExclusive.length - 1);
+            // Don't send 0xF7 timestamp LSB inside of SysEx(MIDI parser will fail) 0x7f -> 0x7e
+            systemExclusiveBuffer.write(0x80 | (int) (timestamp & 0x7e));
+            systemExclusiveBuffer.write(systemExclusive[systemExclusive.length - 1]);
+
+            final byte[] timestampAddedSystemExclusive = systemExclusiveBuffer.getBuffer();
+            final int timestampAddedLength = systemExclusiveBuffer.size();
+
+            // split into 20 bytes.
+            for (int i = 0; i < timestampAddedLength; i += MAX_PACKET_LENGTH - 1) {
+                int length = Math.min(MAX_PACKET_LENGTH - 1, timestampAddedLength - i);
+                byte[] writeBuffer = new byte[length + 1];
+                System.arraycopy(timestampAddedSystemExclusive, i, writeBuffer, 1, length);
+
+                // timestamp MSB
+                writeBuffer[0] = (byte) (0x80 | ((timestamp >> 7) & 0x3f));
+
+                bulkLane.add(writeBuffer);
+            }
+        }
+
+        transferQueuedPackets();
     }
 
     /**
@@ -0,0 +1,30 @@
+package jp.kshoji.blemidi.listener;
+
+import android.support.annotation.NonNull;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+
+/**
+ * Listener for the tempo and transport status of incoming MIDI Clock
+ *
+ * @author K.Shoji
+ */
+public interface OnMidiClockStatusListener {
+
+    /**
+     * The tempo has been changed more than the threshold
+     *
+     * @param sender the device sent the clock
+     * @param tempo the smoothed tempo in BPM
+     */
+    void onMidiClockTempoChanged(@NonNull MidiInputDevice sender, double tempo);
+
+    /**
+     * Start, Continue or Stop has been received
+     *
+     * @param sender the device sent the clock
+     * @param isPlaying true if started or continued
+     * @param songPosition the position in MIDI beats(sixteenth notes)
+     */
+    void onMidiClockTransportChanged(@NonNull MidiInputDevice sender, boolean isPlaying, int songPosition);
+}
@@ -0,0 +1,38 @@
+package jp.kshoji.blemidi.listener;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+
+/**
+ * Listener for the link quality of the connected BLE MIDI devices<br />
+ * The methods are called on the main thread.
+ *
+ * @author K.Shoji
+ */
+public interface OnMidiDeviceLinkQualityListener {
+
+    /**
+     * The link quality has been evaluated, called periodically while connected
+     *
+     * @param device the device
+     * @param linkQuality the score, 0(worst) to 100(best)
+     * @param rssi the smoothed RSSI in dBm
+     */
+    void onMidiDeviceLinkQualityChanged(@NonNull BluetoothDevice device, int linkQuality, int rssi);
+
+    /**
+     * The link quality has been degraded, and the connection may be dropped soon
+     *
+     * @param device the device
+     * @param linkQuality the score, 0(worst) to 100(best)
+     */
+    void onMidiDeviceLinkQualityWarning(@NonNull BluetoothDevice device, int linkQuality);
+
+    /**
+     * The link quality has been recovered after the warning
+     *
+     * @param device the device
+     * @param linkQuality the score, 0(worst) to 100(best)
+     */
+    void onMidiDeviceLinkQualityRecovered(@NonNull BluetoothDevice device, int linkQuality);
+}
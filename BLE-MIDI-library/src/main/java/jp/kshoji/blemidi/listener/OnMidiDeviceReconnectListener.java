@@ -0,0 +1,28 @@
+package jp.kshoji.blemidi.listener;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+
+/**
+ * Listener for reconnecting the dropped BLE MIDI devices
+ *
+ * @author K.Shoji
+ */
+public interface OnMidiDeviceReconnectListener {
+
+    /**
+     * The dropped device has been attached again
+     *
+     * @param device the device
+     * @param elapsedMillis the time from the drop to the attach, in milliseconds
+     * @param attempts the number of connection attempts, including the background connection
+     */
+    void onMidiDeviceReconnected(@NonNull BluetoothDevice device, long elapsedMillis, int attempts);
+
+    /**
+     * The direct connections have been failed, and the background connection(autoConnect) has been started
+     *
+     * @param device the device
+     */
+    void onMidiDeviceReconnectFallback(@NonNull BluetoothDevice device);
+}
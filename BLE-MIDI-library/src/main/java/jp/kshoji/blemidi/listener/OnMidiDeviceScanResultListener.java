@@ -0,0 +1,21 @@
+package jp.kshoji.blemidi.listener;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+
+/**
+ * Listener for the aggregated scan results
+ *
+ * @author K.Shoji
+ */
+public interface OnMidiDeviceScanResultListener {
+
+    /**
+     * The device has been found, or the signal strength has been changed
+     *
+     * @param device the device
+     * @param rssi the smoothed RSSI in dBm
+     * @param isNewDevice true if the device has been found first in this scan
+     */
+    void onMidiDeviceScanResult(@NonNull BluetoothDevice device, int rssi, boolean isNewDevice);
+}
@@ -0,0 +1,24 @@
+package jp.kshoji.blemidi.listener;
+
+import android.support.annotation.NonNull;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+
+/**
+ * Listener for 14bits Control Change, composed from MSB(CC 1-5, 7-31) and LSB(CC 33-37, 39-63)<br />
+ * Bank Select(CC 0/32) and Data Entry(CC 6/38) are not composed.
+ *
+ * @author K.Shoji
+ */
+public interface OnMidiHighResolutionControlChangeListener {
+
+    /**
+     * 14bits Control Change
+     *
+     * @param sender the device sent this message
+     * @param channel 0-15
+     * @param function the controller number of MSB: 1-5, 7-31
+     * @param value 0-16383
+     */
+    void onMidiHighResolutionControlChange(@NonNull MidiInputDevice sender, int channel, int function, int value);
+}
@@ -0,0 +1,31 @@
+package jp.kshoji.blemidi.listener;
+
+import android.support.annotation.NonNull;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+
+/**
+ * Listener for incremental SysEx receiving<br />
+ * Large SysEx messages are delivered as fixed-size chunks while they arrive, instead of one array at 'F7'.
+ *
+ * @author K.Shoji
+ */
+public interface OnMidiSystemExclusiveChunkListener {
+
+    /**
+     * A part of SysEx has been received
+     *
+     * @param sender the device sent this message
+     * @param chunk the part of SysEx: the first chunk starts with 'F0', the last chunk ends with 'F7'
+     * @param isLastChunk true if the chunk is the end of the message
+     */
+    void onMidiSystemExclusiveChunk(@NonNull MidiInputDevice sender, @NonNull byte[] chunk, boolean isLastChunk);
+
+    /**
+     * SysEx has exceeded the maximum length, and has been discarded.<br />
+     * The chunks already received for the message should be dropped.
+     *
+     * @param sender the device sent this message
+     */
+    void onMidiSystemExclusiveOverflow(@NonNull MidiInputDevice sender);
+}
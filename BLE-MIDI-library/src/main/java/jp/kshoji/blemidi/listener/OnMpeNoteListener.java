@@ -0,0 +1,57 @@
+package jp.kshoji.blemidi.listener;
+
+import android.support.annotation.NonNull;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+
+/**
+ * Listener for MPE(MIDI Polyphonic Expression) notes
+ *
+ * @author K.Shoji
+ */
+public interface OnMpeNoteListener {
+
+    /**
+     * Note-on on the member channel
+     *
+     * @param sender the device sent this message
+     * @param channel the member channel 0-15
+     * @param note 0-127
+     * @param velocity 1-127
+     * @param pitchBend the initial pitch bend in semitones, including the zone's pitch bend
+     * @param pressure the initial pressure 0-127
+     * @param timbre the initial timbre(CC74) 0-127
+     */
+    void onMpeNoteOn(@NonNull MidiInputDevice sender, int channel, int note, int velocity, float pitchBend, int pressure, int timbre);
+
+    /**
+     * Expression of the sounding note has been changed, called at most once per the control period for each note
+     *
+     * @param sender the device sent this message
+     * @param channel the member channel 0-15
+     * @param note 0-127
+     * @param pitchBend the pitch bend in semitones, including the zone's pitch bend
+     * @param pressure the pressure 0-127
+     * @param timbre the timbre(CC74) 0-127
+     */
+    void onMpeNoteExpression(@NonNull MidiInputDevice sender, int channel, int note, float pitchBend, int pressure, int timbre);
+
+    /**
+     * Note-off on the member channel
+     *
+     * @param sender the device sent this message
+     * @param channel the member channel 0-15
+     * @param note 0-127
+     * @param velocity the release velocity 0-127
+     */
+    void onMpeNoteOff(@NonNull MidiInputDevice sender, int channel, int note, int velocity);
+
+    /**
+     * The zone has been configured with MPE Configuration Message
+     *
+     * @param sender the device sent this message
+     * @param isLowerZone true if the Lower Zone(manager channel 0), false if the Upper Zone(manager channel 15)
+     * @param memberChannelCount the number of member channels, 0 if the zone has been disabled
+     */
+    void onMpeZoneChanged(@NonNull MidiInputDevice sender, boolean isLowerZone, int memberChannelCount);
+}
@@ -70,4 +70,27 @@ public final class BleMidiCentralService extends AbstractBleMidiService {
             midiProvider.stopScanDevice();
         }
     }
+
+    /**
+     * Sets the scan policy, see {@link BleMidiCentralProvider#setScanPolicy(int, int)}<br />
+     * Effective after the service has been started.
+     *
+     * @param scanPolicy the policy
+     * @param idleTimeoutMillis the period without new devices before backing off
+     * @throws IllegalArgumentException if the policy is unknown, or the timeout is not positive
+     */
+    public void setScanPolicy(int scanPolicy, int idleTimeoutMillis) throws IllegalArgumentException {
+        if (midiProvider != null) {
+            midiProvider.setScanPolicy(scanPolicy, idleTimeoutMillis);
+        }
+    }
+
+    /**
+     * Returns the running scan to low latency mode, such as on user action
+     */
+    public void burstScan() {
+        if (midiProvider != null) {
+            midiProvider.burstScan();
+        }
+    }
 }
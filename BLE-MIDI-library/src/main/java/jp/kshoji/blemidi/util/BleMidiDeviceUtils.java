@@ -12,7 +12,9 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import jp.kshoji.blemidi.R;
@@ -24,8 +26,148 @@ import jp.kshoji.blemidi.R;
  */
 public final class BleMidiDeviceUtils {
 
+    // UUID lists parsed from the resources once
+    private static UUID[] serviceUuids = null;
+    private static BleUuidUtils.UuidMatcher serviceUuidMatcher = null;
+    private static BleUuidUtils.UuidMatcher inputCharacteristicUuidMatcher = null;
+    private static BleUuidUtils.UuidMatcher outputCharacteristicUuidMatcher = null;
+
+    /**
+     * UUIDs of MIDI service and characteristics found on a device
+     */
+    private static final class MidiGattUuids {
+        UUID serviceUuid;
+        UUID inputCharacteristicUuid;
+        UUID outputCharacteristicUuid;
+    }
+
+    // the devices with MIDI service, the least recently used one is forgotten
+    private static final int MAX_CACHED_DEVICES = 8;
+
+    // device address -> UUIDs found on the last discovery
+    private static final Map<String, MidiGattUuids> midiGattUuidsCache = new LinkedHashMap<String, MidiGattUuids>(MAX_CACHED_DEVICES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MidiGattUuids> eldest) {
+            return size() > MAX_CACHED_DEVICES;
+        }
+    };
+
+    /**
+     * Parses the UUID list in the resources
+     *
+     * @param context the context
+     * @param resourceId the id of string-array
+     * @return the UUIDs
+     */
+    @NonNull
+    private static UUID[] parseUuidList(@NonNull final Context context, int resourceId) {
+        String[] uuidStringArray = context.getResources().getStringArray(resourceId);
+        UUID[] uuids = new UUID[uuidStringArray.length];
+        for (int i = 0; i < uuidStringArray.length; i++) {
+            uuids[i] = BleUuidUtils.fromString(uuidStringArray[i]);
+        }
+        return uuids;
+    }
+
+    /**
+     * Obtains the UUIDs for MIDI service
+     *
+     * @param context the context
+     * @return the UUIDs, shared: must not be modified
+     */
+    @NonNull
+    private static synchronized UUID[] getServiceUuids(@NonNull final Context context) {
+        if (serviceUuids == null) {
+            serviceUuids = parseUuidList(context, R.array.uuidListForService);
+        }
+        return serviceUuids;
+    }
+
+    /**
+     * Obtains the matcher for MIDI service
+     *
+     * @param context the context
+     * @return the matcher
+     */
+    @NonNull
+    private static synchronized BleUuidUtils.UuidMatcher getServiceUuidMatcher(@NonNull final Context context) {
+        if (serviceUuidMatcher == null) {
+            serviceUuidMatcher = new BleUuidUtils.UuidMatcher(getServiceUuids(context));
+        }
+        return serviceUuidMatcher;
+    }
+
+    /**
+     * Obtains the matcher for MIDI Input characteristic
+     *
+     * @param context the context
+     * @return the matcher
+     */
+    @NonNull
+    private static synchronized BleUuidUtils.UuidMatcher getInputCharacteristicUuidMatcher(@NonNull final Context context) {
+        if (inputCharacteristicUuidMatcher == null) {
+            inputCharacteristicUuidMatcher = new BleUuidUtils.UuidMatcher(parseUuidList(context, R.array.uuidListForInputCharacteristic));
+        }
+        return inputCharacteristicUuidMatcher;
+    }
+
+    /**
+     * Obtains the matcher for MIDI Output characteristic
+     *
+     * @param context the context
+     * @return the matcher
+     */
+    @NonNull
+    private static synchronized BleUuidUtils.UuidMatcher getOutputCharacteristicUuidMatcher(@NonNull final Context context) {
+        if (outputCharacteristicUuidMatcher == null) {
+            outputCharacteristicUuidMatcher = new BleUuidUtils.UuidMatcher(parseUuidList(context, R.array.uuidListForOutputCharacteristic));
+        }
+        return outputCharacteristicUuidMatcher;
+    }
+
     /**
-     * Obtains BluetoothGattService for MIDI
+     * Checks if the UUID is one of MIDI service UUIDs, such as the service UUID in the advertisement
+     *
+     * @param context the context
+     * @param uuid the UUID
+     * @return true if the UUID is for MIDI service
+     */
+    public static boolean isMidiServiceUuid(@NonNull final Context context, @NonNull final UUID uuid) {
+        return getServiceUuidMatcher(context).matches(uuid);
+    }
+
+    /**
+     * Obtains the cached UUIDs for the device
+     *
+     * @param bluetoothGatt the gatt of device
+     * @param create true to create the UUIDs if not cached, only for the device with MIDI service
+     * @return the UUIDs, null if not cached and not created
+     */
+    @Nullable
+    private static MidiGattUuids getMidiGattUuids(@NonNull final BluetoothGatt bluetoothGatt, boolean create) {
+        final String deviceAddress = bluetoothGatt.getDevice().getAddress();
+        synchronized (midiGattUuidsCache) {
+            MidiGattUuids midiGattUuids = midiGattUuidsCache.get(deviceAddress);
+            if (midiGattUuids == null && create) {
+                midiGattUuids = new MidiGattUuids();
+                midiGattUuidsCache.put(deviceAddress, midiGattUuids);
+            }
+            return midiGattUuids;
+        }
+    }
+
+    /**
+     * Clears the UUIDs of MIDI service and characteristics cached for the devices
+     */
+    public static void clearMidiGattCache() {
+        synchronized (midiGattUuidsCache) {
+            midiGattUuidsCache.clear();
+        }
+    }
+
+    /**
+     * Obtains BluetoothGattService for MIDI<br />
+     * The service found on the device is cached, and looked up directly on the next connection.
      *
      * @param context the context
      * @param bluetoothGatt the gatt of device
@@ -33,21 +175,92 @@ public final class BleMidiDeviceUtils {
      */
     @Nullable
     public static BluetoothGattService getMidiService(@NonNull final Context context, @NonNull final BluetoothGatt bluetoothGatt) {
+        final MidiGattUuids cachedUuids = getMidiGattUuids(bluetoothGatt, false);
+        if (cachedUuids != null) {
+            synchronized (cachedUuids) {
+                if (cachedUuids.serviceUuid != null) {
+                    BluetoothGattService service = bluetoothGatt.getService(cachedUuids.serviceUuid);
+                    if (service != null) {
+                        return service;
+                    }
+                }
+            }
+        }
+
         List<BluetoothGattService> services = bluetoothGatt.getServices();
-        String[] uuidStringArray = context.getResources().getStringArray(R.array.uuidListForService);
+        BleUuidUtils.UuidMatcher uuidMatcher = getServiceUuidMatcher(context);
 
         for (BluetoothGattService service : services) {
-            for (String uuidString : uuidStringArray) {
-                UUID uuid = BleUuidUtils.fromString(uuidString);
-                if (BleUuidUtils.matches(service.getUuid(), uuid)) {
-                    return service;
+            if (uuidMatcher.matches(service.getUuid())) {
+                final MidiGattUuids midiGattUuids = getMidiGattUuids(bluetoothGatt, true);
+                synchronized (midiGattUuids) {
+                    midiGattUuids.serviceUuid = service.getUuid();
                 }
+                return service;
             }
         }
 
+        // not a MIDI device (anymore), nothing is cached
+        synchronized (midiGattUuidsCache) {
+            midiGattUuidsCache.remove(bluetoothGatt.getDevice().getAddress());
+        }
         return null;
     }
 
+    /**
+     * Obtains BluetoothGattCharacteristic for MIDI Input<br />
+     * The characteristic found on the device is cached, and looked up directly on the next connection.
+     *
+     * @param context the context
+     * @param bluetoothGatt the gatt of device
+     * @param bluetoothGattService the MIDI service of the gatt
+     * @return null if no characteristic found
+     */
+    @Nullable
+    public static BluetoothGattCharacteristic getMidiInputCharacteristic(@NonNull final Context context, @NonNull final BluetoothGatt bluetoothGatt, @NonNull final BluetoothGattService bluetoothGattService) {
+        // the MIDI service has been found on the device
+        final MidiGattUuids midiGattUuids = getMidiGattUuids(bluetoothGatt, true);
+        synchronized (midiGattUuids) {
+            if (midiGattUuids.inputCharacteristicUuid != null) {
+                BluetoothGattCharacteristic characteristic = bluetoothGattService.getCharacteristic(midiGattUuids.inputCharacteristicUuid);
+                if (characteristic != null) {
+                    return characteristic;
+                }
+            }
+
+            BluetoothGattCharacteristic characteristic = getMidiInputCharacteristic(context, bluetoothGattService);
+            midiGattUuids.inputCharacteristicUuid = characteristic == null ? null : characteristic.getUuid();
+            return characteristic;
+        }
+    }
+
+    /**
+     * Obtains BluetoothGattCharacteristic for MIDI Output<br />
+     * The characteristic found on the device is cached, and looked up directly on the next connection.
+     *
+     * @param context the context
+     * @param bluetoothGatt the gatt of device
+     * @param bluetoothGattService the MIDI service of the gatt
+     * @return null if no characteristic found
+     */
+    @Nullable
+    public static BluetoothGattCharacteristic getMidiOutputCharacteristic(@NonNull final Context context, @NonNull final BluetoothGatt bluetoothGatt, @NonNull final BluetoothGattService bluetoothGattService) {
+        // the MIDI service has been found on the device
+        final MidiGattUuids midiGattUuids = getMidiGattUuids(bluetoothGatt, true);
+        synchronized (midiGattUuids) {
+            if (midiGattUuids.outputCharacteristicUuid != null) {
+                BluetoothGattCharacteristic characteristic = bluetoothGattService.getCharacteristic(midiGattUuids.outputCharacteristicUuid);
+                if (characteristic != null) {
+                    return characteristic;
+                }
+            }
+
+            BluetoothGattCharacteristic characteristic = getMidiOutputCharacteristic(context, bluetoothGattService);
+            midiGattUuids.outputCharacteristicUuid = characteristic == null ? null : characteristic.getUuid();
+            return characteristic;
+        }
+    }
+
     /**
      * Obtains BluetoothGattCharacteristic for MIDI Input
      *
@@ -58,14 +271,11 @@ public final class BleMidiDeviceUtils {
     @Nullable
     public static BluetoothGattCharacteristic getMidiInputCharacteristic(@NonNull final Context context, @NonNull final BluetoothGattService bluetoothGattService) {
         List<BluetoothGattCharacteristic> characteristics = bluetoothGattService.getCharacteristics();
-        String[] uuidStringArray = context.getResources().getStringArray(R.array.uuidListForInputCharacteristic);
+        BleUuidUtils.UuidMatcher uuidMatcher = getInputCharacteristicUuidMatcher(context);
 
         for (BluetoothGattCharacteristic characteristic : characteristics) {
-            for (String uuidString : uuidStringArray) {
-                UUID uuid = BleUuidUtils.fromString(uuidString);
-                if (BleUuidUtils.matches(characteristic.getUuid(), uuid)) {
-                    return characteristic;
-                }
+            if (uuidMatcher.matches(characteristic.getUuid())) {
+                return characteristic;
             }
         }
 
@@ -82,14 +292,11 @@ public final class BleMidiDeviceUtils {
     @Nullable
     public static BluetoothGattCharacteristic getMidiOutputCharacteristic(@NonNull final Context context, @NonNull final BluetoothGattService bluetoothGattService) {
         List<BluetoothGattCharacteristic> characteristics = bluetoothGattService.getCharacteristics();
-        String[] uuidStringArray = context.getResources().getStringArray(R.array.uuidListForOutputCharacteristic);
+        BleUuidUtils.UuidMatcher uuidMatcher = getOutputCharacteristicUuidMatcher(context);
 
         for (BluetoothGattCharacteristic characteristic : characteristics) {
-            for (String uuidString : uuidStringArray) {
-                UUID uuid = BleUuidUtils.fromString(uuidString);
-                if (BleUuidUtils.matches(characteristic.getUuid(), uuid)) {
-                    return characteristic;
-                }
+            if (uuidMatcher.matches(characteristic.getUuid())) {
+                return characteristic;
             }
         }
 
@@ -107,30 +314,21 @@ public final class BleMidiDeviceUtils {
     public static List<ScanFilter> getBleMidiScanFilters(@NonNull final Context context) {
         List<ScanFilter> scanFilters = new ArrayList<>();
 
-        String[] uuidStringArray = context.getResources().getStringArray(R.array.uuidListForService);
-        for (String uuidString : uuidStringArray) {
-            scanFilters.add(new ScanFilter.Builder().setServiceUuid(ParcelUuid.fromString(uuidString)).build());
+        for (UUID uuid : getServiceUuids(context)) {
+            scanFilters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
         }
 
         return scanFilters;
     }
 
     /**
+     * Obtains the UUIDs for MIDI service
      *
-     * @param context
-     * @return
+     * @param context the context
+     * @return the array of UUID
      */
+    @NonNull
     public static UUID[] getUuidListForService(@NonNull final Context context) {
-        String[] uuidStringArray = context.getResources().getStringArray(R.array.uuidListForService);
-
-//        final UUID[] serviceUuids = new UUID[uuidStringArray.length];
-//        for (int i = 0; i < uuidStringArray.length; i++) {
-//            String uuidString = uuidStringArray[i];
-//            serviceUuids[i] = UUID.fromString(uuidString);
-//        }
-
-        UUID[] serviceUuids = new UUID[1];
-        serviceUuids[0] = UUID.fromString("03b80e5a-ede8-4b33-a751-6ce34ec4c700");
-        return serviceUuids;
+        return getServiceUuids(context).clone();
     }
 }
@@ -2,17 +2,18 @@ package jp.kshoji.blemidi.util;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.SparseIntArray;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
 import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiHighResolutionControlChangeListener;
 import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+import jp.kshoji.blemidi.listener.OnMidiSystemExclusiveChunkListener;
 
 /**
  * BLE MIDI Parser<br />
@@ -25,40 +26,124 @@ public final class BleMidiParser {
     // MIDI event message
     private int midiEventKind;
     private int midiEventNote;
-    private int midiEventVelocity;
+    private int runningStatus;
 
     // for RPN/NRPN messages
     private static final int RPN_STATUS_NONE = 0;
     private static final int RPN_STATUS_RPN = 1;
     private static final int RPN_STATUS_NRPN = 2;
-    private int rpnNrpnFunction;
-    private int rpnNrpnValueMsb;
-    private int rpnNrpnValueLsb;
-    private int rpnStatus = RPN_STATUS_NONE;
-    private int rpnFunctionMsb = 0x7f;
-    private int rpnFunctionLsb = 0x7f;
-    private int nrpnFunctionMsb = 0x7f;
-    private int nrpnFunctionLsb = 0x7f;
-
-    private final SparseIntArray rpnCacheMsb = new SparseIntArray();
-    private final SparseIntArray rpnCacheLsb = new SparseIntArray();
-    private final SparseIntArray nrpnCacheMsb = new SparseIntArray();
-    private final SparseIntArray nrpnCacheLsb = new SparseIntArray();
+    private static final int RPN_FUNCTION_NULL = 0x3fff;
+    // the selected parameters for each channel
+    private final byte[] rpnStatuses = new byte[16];
+    private final short[] rpnFunctions = new short[16];
+    private final short[] nrpnFunctions = new short[16];
+
+    private final ParameterNumberStore parameterNumberStore = new ParameterNumberStore();
+
+    // for coalescing continuous messages
+    private static final int COALESCING_KEY_POLYPHONIC_AFTERTOUCH = 0;
+    private static final int COALESCING_KEY_CONTROL_CHANGE = 16 * 128;
+    private static final int COALESCING_KEY_CHANNEL_AFTERTOUCH = 2 * 16 * 128;
+    private static final int COALESCING_KEY_PITCH_WHEEL = 2 * 16 * 128 + 16;
+    private static final int COALESCING_KEYS = 2 * 16 * 128 + 2 * 16;
+    private static final boolean[] COALESCIBLE_CONTROLS = new boolean[128];
+
+    static {
+        Arrays.fill(COALESCIBLE_CONTROLS, true);
+        // discrete controls must be delivered without loss
+        COALESCIBLE_CONTROLS[0] = false; // Bank Select MSB
+        COALESCIBLE_CONTROLS[32] = false; // Bank Select LSB
+        COALESCIBLE_CONTROLS[6] = false; // Data Entry MSB
+        COALESCIBLE_CONTROLS[38] = false; // Data Entry LSB
+        Arrays.fill(COALESCIBLE_CONTROLS, 64, 70, false); // switches: Sustain, Portamento, Sostenuto, Soft, Legato, Hold 2
+        Arrays.fill(COALESCIBLE_CONTROLS, 96, 102, false); // Data Increment / Decrement, NRPN / RPN numbers
+        Arrays.fill(COALESCIBLE_CONTROLS, 120, 128, false); // Channel Mode messages
+    }
+
+    // for 14bits Control Change
+    private OnMidiHighResolutionControlChangeListener highResolutionControlChangeListener = null;
+    private final int[] highResolutionControlMsbs = new int[16 * 32];
+    // the events of MSB in the current packet, completed by LSB
+    private final HighResolutionControlChangeEvent[] pendingHighResolutionControlEvents = new HighResolutionControlChangeEvent[16 * 32];
+    private final int[] pendingHighResolutionControls = new int[16];
+    private boolean hasPendingHighResolutionControl = false;
+
+    // for releasing hanging notes
+    private final NoteStateTracker noteStateTracker = new NoteStateTracker();
+    private volatile int noteReleaseTimeoutMillis = 0;
+    private volatile long lastPacketReceivedMillis = 0;
+
+    private final Object coalescingLock = new Object();
+    private int coalescingWindowMillis = 0;
+    private CoalescedMessageEvent[] pendingCoalescedEvents = null;
+    private long[] lastCoalescedTimings = null;
 
     // for SysEx messages
     private final Object systemExclusiveLock = new Object();
     private final ReusableByteArrayOutputStream systemExclusiveStream = new ReusableByteArrayOutputStream();
-    private final ReusableByteArrayOutputStream systemExclusiveRecoveryStream = new ReusableByteArrayOutputStream();
+
+    /**
+     * Overflow policy: the SysEx longer than the maximum length will be truncated, and terminated with 'F7'
+     */
+    public static final int SYSTEM_EXCLUSIVE_OVERFLOW_TRUNCATE = 0;
+    /**
+     * Overflow policy: the SysEx longer than the maximum length will be discarded
+     */
+    public static final int SYSTEM_EXCLUSIVE_OVERFLOW_DISCARD = 1;
+    private static final int DEFAULT_SYSTEM_EXCLUSIVE_CHUNK_SIZE = 1024;
+    private int systemExclusiveMaxLength = 0;
+    private int systemExclusiveOverflowPolicy = SYSTEM_EXCLUSIVE_OVERFLOW_TRUNCATE;
+    private int systemExclusiveChunkSize = DEFAULT_SYSTEM_EXCLUSIVE_CHUNK_SIZE;
+    private OnMidiSystemExclusiveChunkListener systemExclusiveChunkListener = null;
+    private int systemExclusiveLength;
+    private boolean isSystemExclusiveOverflowed;
+    // the timestamp byte received in SysEx, for the following 'F7' or System Real-Time message
+    private int systemExclusivePendingTimestamp = -1;
+    private boolean isSystemExclusiveDropped;
 
     // states
     private static final int MIDI_STATE_TIMESTAMP = 0;
     private static final int MIDI_STATE_WAIT = 1;
-    private static final int MIDI_STATE_SIGNAL_2BYTES_2 = 21;
-    private static final int MIDI_STATE_SIGNAL_3BYTES_2 = 31;
-    private static final int MIDI_STATE_SIGNAL_3BYTES_3 = 32;
-    private static final int MIDI_STATE_SIGNAL_SYSEX = 41;
+    private static final int MIDI_STATE_SIGNAL_2BYTES_2 = 2;
+    private static final int MIDI_STATE_SIGNAL_3BYTES_2 = 3;
+    private static final int MIDI_STATE_SIGNAL_3BYTES_3 = 4;
+    private static final int MIDI_STATE_SIGNAL_SYSEX = 5;
     private int midiState;
 
+    // transitions from MIDI_STATE_WAIT, indexed by the received byte
+    private static final int TRANSITION_RUNNING_STATUS = 0;
+    private static final int TRANSITION_IGNORE = 1;
+    private static final int TRANSITION_2BYTES = 2;
+    private static final int TRANSITION_3BYTES = 3;
+    private static final int TRANSITION_1BYTE = 4;
+    private static final int TRANSITION_SYSEX = 5;
+    private static final byte[] WAIT_TRANSITIONS = new byte[256];
+
+    static {
+        // 0x00 - 0x7f: data bytes with running status
+        Arrays.fill(WAIT_TRANSITIONS, 0x00, 0x80, (byte) TRANSITION_RUNNING_STATUS);
+        // note off, note on, polyphonic aftertouch, control change
+        Arrays.fill(WAIT_TRANSITIONS, 0x80, 0xc0, (byte) TRANSITION_3BYTES);
+        // program change, channel aftertouch
+        Arrays.fill(WAIT_TRANSITIONS, 0xc0, 0xe0, (byte) TRANSITION_2BYTES);
+        // pitch bend
+        Arrays.fill(WAIT_TRANSITIONS, 0xe0, 0xf0, (byte) TRANSITION_3BYTES);
+        // undefined messages, and 'F7' without SysEx
+        Arrays.fill(WAIT_TRANSITIONS, 0xf0, 0x100, (byte) TRANSITION_IGNORE);
+
+        WAIT_TRANSITIONS[0xf0] = TRANSITION_SYSEX;
+        WAIT_TRANSITIONS[0xf1] = TRANSITION_2BYTES; // MIDI Time Code Quarter Frame
+        WAIT_TRANSITIONS[0xf2] = TRANSITION_3BYTES; // Song Position Pointer
+        WAIT_TRANSITIONS[0xf3] = TRANSITION_2BYTES; // Song Select
+        WAIT_TRANSITIONS[0xf6] = TRANSITION_1BYTE; // Tune Request
+        WAIT_TRANSITIONS[0xf8] = TRANSITION_1BYTE; // Timing Clock
+        WAIT_TRANSITIONS[0xfa] = TRANSITION_1BYTE; // Start
+        WAIT_TRANSITIONS[0xfb] = TRANSITION_1BYTE; // Continue
+        WAIT_TRANSITIONS[0xfc] = TRANSITION_1BYTE; // Stop
+        WAIT_TRANSITIONS[0xfe] = TRANSITION_1BYTE; // Active Sensing
+        WAIT_TRANSITIONS[0xff] = TRANSITION_1BYTE; // Reset
+    }
+
     // for Timestamp
     private static final int MAX_TIMESTAMP = 8192;
     private static final int BUFFER_LENGTH_MILLIS = 30;
@@ -69,6 +154,9 @@ public final class BleMidiParser {
     private Boolean isTimestampAlwaysZero = null;
 
     private OnMidiInputEventListener midiInputEventListener = null;
+    private MidiClockTracker midiClockTracker = null;
+    private MidiMessageFilter midiMessageFilter = null;
+    private MidiMessageTransformer midiMessageTransformer = null;
     private final MidiInputDevice sender;
 
     private final EventDequeueRunnable eventDequeueRunnable;
@@ -85,7 +173,9 @@ public final class BleMidiParser {
         midiState = MIDI_STATE_TIMESTAMP;
         midiEventKind = 0;
         midiEventNote = 0;
-        midiEventVelocity = 0;
+        runningStatus = 0;
+        Arrays.fill(rpnFunctions, (short) RPN_FUNCTION_NULL);
+        Arrays.fill(nrpnFunctions, (short) RPN_FUNCTION_NULL);
 
         eventDequeueRunnable = new EventDequeueRunnable();
         eventDequeueThread = new Thread(eventDequeueRunnable, "EventDequeueThread");
@@ -101,6 +191,190 @@ public final class BleMidiParser {
         this.midiInputEventListener = midiInputEventListener;
     }
 
+    /**
+     * Sets {@link jp.kshoji.blemidi.util.MidiClockTracker}<br />
+     * The tracker is fed with Timing Clock, Start, Continue, Stop and Song Position Pointer on the parsing thread, before the events are scheduled.
+     *
+     * @param midiClockTracker the tracker, null to stop tracking
+     */
+    public void setMidiClockTracker(@Nullable MidiClockTracker midiClockTracker) {
+        this.midiClockTracker = midiClockTracker;
+    }
+
+    /**
+     * Sets {@link jp.kshoji.blemidi.util.MidiMessageFilter}<br />
+     * The filter is evaluated on the parsing thread, the dropped messages are not queued.
+     * The MidiClockTracker is fed regardless of the filter, the dropped channel messages don't update the sounding notes or RPN/NRPN values.
+     *
+     * @param midiMessageFilter the filter, null to pass all messages
+     */
+    public void setMidiMessageFilter(@Nullable MidiMessageFilter midiMessageFilter) {
+        this.midiMessageFilter = midiMessageFilter;
+    }
+
+    /**
+     * Sets {@link jp.kshoji.blemidi.util.MidiMessageTransformer}<br />
+     * The channel messages passed the filter are transformed on the parsing thread, before the sounding notes and RPN/NRPN values are updated.
+     *
+     * @param midiMessageTransformer the transformer, null to deliver the messages as received
+     */
+    public void setMidiMessageTransformer(@Nullable MidiMessageTransformer midiMessageTransformer) {
+        this.midiMessageTransformer = midiMessageTransformer;
+    }
+
+    /**
+     * Sets {@link jp.kshoji.blemidi.listener.OnMidiSystemExclusiveChunkListener}<br />
+     * While the listener is set, SysEx is delivered by chunks, and {@link OnMidiInputEventListener#onMidiSystemExclusive(MidiInputDevice, byte[])} will not be called.
+     *
+     * @param systemExclusiveChunkListener the listener for SysEx chunks, null to receive the whole SysEx at once
+     * @param chunkSize the maximum length of a chunk in bytes
+     * @throws IllegalArgumentException if chunkSize is not positive
+     */
+    public void setSystemExclusiveChunkListener(@Nullable OnMidiSystemExclusiveChunkListener systemExclusiveChunkListener, int chunkSize) throws IllegalArgumentException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+
+        synchronized (systemExclusiveLock) {
+            this.systemExclusiveChunkListener = systemExclusiveChunkListener;
+            this.systemExclusiveChunkSize = chunkSize;
+        }
+    }
+
+    /**
+     * Sets the maximum length of SysEx, and the policy for longer messages
+     *
+     * @param maxLength the maximum length in bytes, including 'F0' and 'F7'. 0 or negative value : no limit
+     * @param overflowPolicy {@link #SYSTEM_EXCLUSIVE_OVERFLOW_TRUNCATE} or {@link #SYSTEM_EXCLUSIVE_OVERFLOW_DISCARD}
+     * @throws IllegalArgumentException if overflowPolicy is unknown
+     */
+    public void setSystemExclusiveMaxLength(int maxLength, int overflowPolicy) throws IllegalArgumentException {
+        if (overflowPolicy != SYSTEM_EXCLUSIVE_OVERFLOW_TRUNCATE && overflowPolicy != SYSTEM_EXCLUSIVE_OVERFLOW_DISCARD) {
+            throw new IllegalArgumentException("Unknown overflow policy: " + overflowPolicy);
+        }
+
+        synchronized (systemExclusiveLock) {
+            // 'F0' and 'F7' must be contained at least
+            this.systemExclusiveMaxLength = maxLength > 0 ? Math.max(maxLength, 2) : 0;
+            this.systemExclusiveOverflowPolicy = overflowPolicy;
+        }
+    }
+
+    /**
+     * Sets {@link jp.kshoji.blemidi.listener.OnMidiHighResolutionControlChangeListener}<br />
+     * While the listener is set, the pairs of MSB(CC 1-5, 7-31) and LSB(CC 33-37, 39-63) are composed into 14bits value, and
+     * {@link OnMidiInputEventListener#onMidiControlChange(MidiInputDevice, int, int, int)} will not be called for them.
+     * The MSB without LSB in the same packet is delivered as the value with LSB 0.
+     * Bank Select(CC 0/32) and Data Entry(CC 6/38) are not composed.
+     *
+     * @param highResolutionControlChangeListener the listener, null to receive Control Changes as 7bits values
+     */
+    public void setOnMidiHighResolutionControlChangeListener(@Nullable OnMidiHighResolutionControlChangeListener highResolutionControlChangeListener) {
+        this.highResolutionControlChangeListener = highResolutionControlChangeListener;
+    }
+
+    /**
+     * Sets the window for coalescing continuous messages<br />
+     * Pitch Wheel, Channel Aftertouch, Polyphonic Aftertouch and continuous Control Changes are delivered at most once per the window
+     * for each channel and controller(or note), with the latest value received in the window.
+     * Notes, switches, RPN/NRPN related controls and the other messages are delivered without coalescing.
+     *
+     * @param windowMillis the window in milliseconds, 0 to disable coalescing(default)
+     * @throws IllegalArgumentException if the window is negative
+     */
+    public void setControllerCoalescingWindow(int windowMillis) throws IllegalArgumentException {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Negative window: " + windowMillis);
+        }
+
+        synchronized (coalescingLock) {
+            if (windowMillis > 0 && pendingCoalescedEvents == null) {
+                pendingCoalescedEvents = new CoalescedMessageEvent[COALESCING_KEYS];
+                lastCoalescedTimings = new long[COALESCING_KEYS];
+            }
+            coalescingWindowMillis = windowMillis;
+        }
+    }
+
+    /**
+     * Obtains the latest value of the RPN, decoded from Data Entry / Data Increment / Data Decrement of the channel
+     *
+     * @param channel 0-15
+     * @param function 14bits RPN number
+     * @return 14bits value, 0 if not received yet
+     */
+    public int getRpnValue(int channel, int function) {
+        return parameterNumberStore.get(channel, ParameterNumberStore.TYPE_RPN, function & 0x3fff);
+    }
+
+    /**
+     * Obtains the latest value of the NRPN, decoded from Data Entry / Data Increment / Data Decrement of the channel
+     *
+     * @param channel 0-15
+     * @param function 14bits NRPN number
+     * @return 14bits value, 0 if not received yet
+     */
+    public int getNrpnValue(int channel, int function) {
+        return parameterNumberStore.get(channel, ParameterNumberStore.TYPE_NRPN, function & 0x3fff);
+    }
+
+    /**
+     * Obtains the sounding notes, decoded from the received messages
+     *
+     * @return the tracker
+     */
+    @NonNull
+    public NoteStateTracker getNoteStateTracker() {
+        return noteStateTracker;
+    }
+
+    /**
+     * Sets the timeout for releasing the sounding notes<br />
+     * If no packet is received longer than the timeout while some notes are sounding, {@link #releaseSoundingNotes()} is called.
+     *
+     * @param timeoutMillis the timeout in milliseconds, 0 to disable(default)
+     * @throws IllegalArgumentException if the timeout is negative
+     */
+    public void setNoteReleaseTimeout(int timeoutMillis) throws IllegalArgumentException {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Negative timeout: " + timeoutMillis);
+        }
+        lastPacketReceivedMillis = System.currentTimeMillis();
+        noteReleaseTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Delivers the queued events immediately, and Note-off for all sounding notes<br />
+     * Called on the detach of the device, to avoid hanging notes in the downstream.
+     */
+    public void releaseSoundingNotes() {
+        // waits for the batch being fired on the dequeue thread, and the queued Note-on must not be fired after the release
+        synchronized (dispatchLock) {
+            final List<MidiEventWithTiming> queuedEvents;
+            synchronized (queuedEventList) {
+                queuedEvents = new ArrayList<>(queuedEventList);
+                queuedEventList.clear();
+            }
+            Collections.sort(queuedEvents, eventDequeueRunnable.midiTimerTaskComparator);
+            for (MidiEventWithTiming event : queuedEvents) {
+                event.run();
+            }
+
+            final long[] soundingNotes = new long[NoteStateTracker.SNAPSHOT_LENGTH];
+            if (noteStateTracker.drainTo(soundingNotes) == 0) {
+                return;
+            }
+            for (int i = 0; i < NoteStateTracker.SNAPSHOT_LENGTH; i++) {
+                long notes = soundingNotes[i];
+                while (notes != 0) {
+                    final int bit = Long.numberOfTrailingZeros(notes);
+                    notes &= notes - 1;
+                    fireMessage(0x80 | (i >> 1), ((i & 1) << 6) | bit, 0);
+                }
+            }
+        }
+    }
+
     /**
      * Stops the internal Thread
      */
@@ -116,7 +390,7 @@ public final class BleMidiParser {
     private abstract class MidiEventWithTiming implements Runnable {
         private static final int INVALID = -1;
 
-        private final long timing;
+        private long timing;
         private final int arg1;
         private final int arg2;
         private final int arg3;
@@ -184,15 +458,6 @@ public final class BleMidiParser {
             timing = calculateEventFireTime(timestamp);
         }
 
-        /**
-         * Constructor with no arguments
-         *
-         * @param timestamp BLE MIDI timestamp
-         */
-        MidiEventWithTiming(int timestamp) {
-            this(INVALID, INVALID, INVALID, null, timestamp);
-        }
-
         /**
          * Constructor with 1 argument
          *
@@ -203,17 +468,6 @@ public final class BleMidiParser {
             this(arg1, INVALID, INVALID, null, timestamp);
         }
 
-        /**
-         * Constructor with 2 arguments
-         *
-         * @param arg1 argument 1
-         * @param arg2 argument 2
-         * @param timestamp BLE MIDI timestamp
-         */
-        MidiEventWithTiming(int arg1, int arg2, int timestamp) {
-            this(arg1, arg2, INVALID, null, timestamp);
-        }
-
         /**
          * Constructor with 3 arguments
          *
@@ -236,10 +490,30 @@ public final class BleMidiParser {
             this(INVALID, INVALID, INVALID, array, timestamp);
         }
 
+        /**
+         * Constructor with 1 argument and array
+         *
+         * @param arg1 argument 1
+         * @param array data
+         * @param timestamp BLE MIDI timestamp
+         */
+        MidiEventWithTiming(int arg1, @NonNull byte[] array, int timestamp) {
+            this(arg1, INVALID, INVALID, array, timestamp);
+        }
+
         public long getTiming() {
             return timing;
         }
 
+        /**
+         * Delays the firing timing, must be called before queueing
+         *
+         * @param earliestTiming the earliest timing to fire
+         */
+        void postpone(long earliestTiming) {
+            timing = Math.max(timing, earliestTiming);
+        }
+
         public int getArg1() {
             return arg1;
         }
@@ -258,531 +532,849 @@ public final class BleMidiParser {
     }
 
     /**
-     * Parses MIDI events
+     * {@link MidiEventWithTiming} for the channel messages, System Common messages(except SysEx) and System Real-Time messages
+     */
+    private final class MidiMessageEvent extends MidiEventWithTiming {
+
+        /**
+         * Constructor
+         *
+         * @param status the status byte
+         * @param data1 the first data byte, 0 if not used
+         * @param data2 the second data byte, 0 if not used
+         * @param timestamp BLE MIDI timestamp
+         */
+        MidiMessageEvent(int status, int data1, int data2, int timestamp) {
+            super(status, data1, data2, timestamp);
+        }
+
+        @Override
+        public void run() {
+            fireMessage(getArg1(), getArg2(), getArg3());
+        }
+    }
+
+    /**
+     * {@link MidiEventWithTiming} for 14bits Control Change, the value will be completed by LSB in the same packet
+     */
+    private final class HighResolutionControlChangeEvent extends MidiEventWithTiming {
+        private int value;
+
+        /**
+         * Constructor
+         *
+         * @param status the status byte of Control Change
+         * @param function the controller number of MSB: 1-5, 7-31
+         * @param value 14bits value
+         * @param timestamp BLE MIDI timestamp
+         */
+        HighResolutionControlChangeEvent(int status, int function, int value, int timestamp) {
+            super(status, function, value, timestamp);
+            this.value = value;
+        }
+
+        /**
+         * Sets the value, must be called before queueing
+         *
+         * @param value 14bits value
+         */
+        void setValue(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public void run() {
+            final OnMidiHighResolutionControlChangeListener listener = highResolutionControlChangeListener;
+            if (listener != null) {
+                listener.onMidiHighResolutionControlChange(sender, getArg1() & 0xf, getArg2(), value & 0x3fff);
+            }
+        }
+    }
+
+    /**
+     * {@link MidiEventWithTiming} for continuous messages, the data will be overwritten by the later message until fired
+     */
+    private final class CoalescedMessageEvent extends MidiEventWithTiming {
+        private final int coalescingKey;
+        private int data1;
+        private int data2;
+
+        /**
+         * Constructor
+         *
+         * @param coalescingKey the key for the channel and controller
+         * @param status the status byte
+         * @param data1 the first data byte
+         * @param data2 the second data byte, 0 if not used
+         * @param timestamp BLE MIDI timestamp
+         */
+        CoalescedMessageEvent(int coalescingKey, int status, int data1, int data2, int timestamp) {
+            super(status, data1, data2, timestamp);
+            this.coalescingKey = coalescingKey;
+            this.data1 = data1;
+            this.data2 = data2;
+        }
+
+        @Override
+        public void run() {
+            final int latestData1;
+            final int latestData2;
+            synchronized (coalescingLock) {
+                latestData1 = data1;
+                latestData2 = data2;
+                if (pendingCoalescedEvents[coalescingKey] == this) {
+                    pendingCoalescedEvents[coalescingKey] = null;
+                }
+            }
+
+            fireMessage(getArg1(), latestData1, latestData2);
+        }
+    }
+
+    /**
+     * Calls the listener method for the message
      *
-     * @param header the header bits
-     * @param event the event byte
-     */
-    private void parseMidiEvent(final int header, final byte event) {
-        final int midiEvent = event & 0xff;
-
-        if (midiState == MIDI_STATE_TIMESTAMP) {
-            if ((midiEvent & 0x80) == 0) {
-                // running status
-                midiState = MIDI_STATE_WAIT;
-            }
-
-            if (midiEvent == 0xf7) {
-                // is this end of SysEx???
-                synchronized (systemExclusiveLock) {
-                    if (systemExclusiveRecoveryStream.size() > 0) {
-                        // previous SysEx has been failed, due to timestamp was 0xF7
-                        // process SysEx again
-
-                        // last written byte is for timestamp
-                        int removed = systemExclusiveRecoveryStream.replaceLastByte(midiEvent);
-                        if (removed >= 0) {
-                            timestamp = ((header & 0x3f) << 7) | (removed & 0x7f);
-
-                            addEventToQueue(new MidiEventWithTiming(systemExclusiveRecoveryStream.toByteArray(), timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiSystemExclusive(sender, getArray());
-                                    }
-                                }
-                            });
-                        }
+     * @param status the status byte
+     * @param data1 the first data byte, 0 if not used
+     * @param data2 the second data byte, 0 if not used
+     */
+    private void fireMessage(final int status, final int data1, final int data2) {
+        final OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener == null) {
+            return;
+        }
 
-                        systemExclusiveRecoveryStream.reset();
-                    }
+        final int channel = status & 0xf;
+        switch (status & 0xf0) {
+            case 0x80:
+                listener.onMidiNoteOff(sender, channel, data1, data2);
+                break;
+            case 0x90:
+                if (data2 == 0) {
+                    listener.onMidiNoteOff(sender, channel, data1, data2);
+                } else {
+                    listener.onMidiNoteOn(sender, channel, data1, data2);
                 }
+                break;
+            case 0xa0:
+                listener.onMidiPolyphonicAftertouch(sender, channel, data1, data2);
+                break;
+            case 0xb0:
+                listener.onMidiControlChange(sender, channel, data1, data2);
+                break;
+            case 0xc0:
+                listener.onMidiProgramChange(sender, channel, data1);
+                break;
+            case 0xd0:
+                listener.onMidiChannelAftertouch(sender, channel, data1);
+                break;
+            case 0xe0:
+                listener.onMidiPitchWheel(sender, channel, (data1 & 0x7f) | ((data2 & 0x7f) << 7));
+                break;
+            default:
+                switch (status) {
+                    case 0xf1:
+                        listener.onMidiTimeCodeQuarterFrame(sender, data1);
+                        break;
+                    case 0xf2:
+                        listener.onMidiSongPositionPointer(sender, (data1 & 0x7f) | ((data2 & 0x7f) << 7));
+                        break;
+                    case 0xf3:
+                        listener.onMidiSongSelect(sender, data1);
+                        break;
+                    case 0xf6:
+                        listener.onMidiTuneRequest(sender);
+                        break;
+                    case 0xf8:
+                        listener.onMidiTimingClock(sender);
+                        break;
+                    case 0xfa:
+                        listener.onMidiStart(sender);
+                        break;
+                    case 0xfb:
+                        listener.onMidiContinue(sender);
+                        break;
+                    case 0xfc:
+                        listener.onMidiStop(sender);
+                        break;
+                    case 0xfe:
+                        listener.onMidiActiveSensing(sender);
+                        break;
+                    case 0xff:
+                        listener.onMidiReset(sender);
+                        break;
+                    default:
+                        break;
+                }
+                break;
+        }
+    }
 
-                // process next byte with state: MIDI_STATE_TIMESTAMP
-                midiState = MIDI_STATE_TIMESTAMP;
+    /**
+     * {@link MidiEventWithTiming} for RPN/NRPN messages
+     */
+    private final class ParameterNumberEvent extends MidiEventWithTiming {
+        private final boolean isNrpn;
+
+        /**
+         * Constructor
+         *
+         * @param isNrpn true if NRPN, false if RPN
+         * @param status the status byte of Control Change
+         * @param function 14bits function
+         * @param value 14bits value
+         * @param timestamp BLE MIDI timestamp
+         */
+        ParameterNumberEvent(boolean isNrpn, int status, int function, int value, int timestamp) {
+            super(status, function, value, timestamp);
+            this.isNrpn = isNrpn;
+        }
+
+        @Override
+        public void run() {
+            final OnMidiInputEventListener listener = midiInputEventListener;
+            if (listener == null) {
                 return;
+            }
+
+            if (isNrpn) {
+                listener.onNRPNMessage(sender, getArg1() & 0xf, getArg2() & 0x3fff, getArg3() & 0x3fff);
             } else {
-                // there is no error. reset the stream for recovery
-                synchronized (systemExclusiveLock) {
-                    if (systemExclusiveRecoveryStream.size() > 0) {
-                        systemExclusiveRecoveryStream.reset();
-                    }
+                listener.onRPNMessage(sender, getArg1() & 0xf, getArg2() & 0x3fff, getArg3() & 0x3fff);
+            }
+        }
+    }
+
+    /**
+     * Processes the decoded message, and adds it to event queue
+     *
+     * @param status the status byte
+     * @param data1 the first data byte, 0 if not used
+     * @param data2 the second data byte, 0 if not used
+     */
+    private void dispatchMessage(int status, int data1, int data2) {
+        final MidiMessageFilter filter = midiMessageFilter;
+        final boolean isDropped = filter != null && filter.isDropped(status, data1);
+
+        final MidiMessageTransformer transformer = midiMessageTransformer;
+        if (transformer != null && !isDropped && status < 0xf0) {
+            final int transformed = transformer.transform(status, data1, data2);
+            if (transformed == MidiMessageTransformer.DROPPED) {
+                return;
+            }
+            status = transformed >> 16;
+            data1 = (transformed >> 8) & 0xff;
+            data2 = transformed & 0xff;
+        }
+
+        switch (status) {
+            case 0xf2:
+                if (midiClockTracker != null) {
+                    midiClockTracker.onSongPositionPointer((data1 & 0x7f) | ((data2 & 0x7f) << 7));
+                }
+                break;
+            case 0xf8:
+                if (midiClockTracker != null) {
+                    midiClockTracker.onTimingClock(sender, timestamp);
+                }
+                break;
+            case 0xfa:
+                if (midiClockTracker != null) {
+                    midiClockTracker.onStart(sender);
+                }
+                break;
+            case 0xfb:
+                if (midiClockTracker != null) {
+                    midiClockTracker.onContinue(sender);
+                }
+                break;
+            case 0xfc:
+                if (midiClockTracker != null) {
+                    midiClockTracker.onStop(sender);
+                }
+                break;
+            default:
+                if (isDropped) {
+                    return;
                 }
+
+                switch (status & 0xf0) {
+                    case 0x80:
+                        noteStateTracker.noteOff(status & 0xf, data1);
+                        break;
+                    case 0x90:
+                        if (data2 == 0) {
+                            noteStateTracker.noteOff(status & 0xf, data1);
+                        } else {
+                            noteStateTracker.noteOn(status & 0xf, data1);
+                        }
+                        break;
+                    case 0xb0:
+                        processParameterNumber(status, data1, data2);
+
+                        if (highResolutionControlChangeListener != null && data1 < 64 && (data1 & 0x1f) != 0 && (data1 & 0x1f) != 6) {
+                            processHighResolutionControlChange(status, data1, data2);
+                            return;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                break;
+        }
+
+        if (isDropped) {
+            return;
+        }
+
+        if (coalescingWindowMillis > 0) {
+            final int coalescingKey = getCoalescingKey(status, data1);
+            if (coalescingKey >= 0) {
+                coalesceMessage(coalescingKey, status, data1, data2);
+                return;
             }
         }
 
-        if (midiState == MIDI_STATE_TIMESTAMP) {
-            timestamp = ((header & 0x3f) << 7) | (midiEvent & 0x7f);
-            midiState = MIDI_STATE_WAIT;
-        } else if (midiState == MIDI_STATE_WAIT) {
-            switch (midiEvent & 0xf0) {
-                case 0xf0: {
-                    switch (midiEvent) {
-                        case 0xf0:
-                            synchronized (systemExclusiveLock) {
-                                systemExclusiveStream.reset();
-                                systemExclusiveStream.write(midiEvent);
-                                systemExclusiveRecoveryStream.reset();
-                            }
-                            midiState = MIDI_STATE_SIGNAL_SYSEX;
-                            break;
+        addEventToQueue(new MidiMessageEvent(status, data1, data2, timestamp));
+    }
 
-                        case 0xf1:
-                        case 0xf3:
-                            // 0xf1 MIDI Time Code Quarter Frame. : 2bytes
-                            // 0xf3 Song Select. : 2bytes
-                            midiEventKind = midiEvent;
-                            midiState = MIDI_STATE_SIGNAL_2BYTES_2;
-                            break;
+    /**
+     * Composes MSB and LSB of Control Change into 14bits value
+     *
+     * @param status the status byte of Control Change
+     * @param function 1-5, 7-31 for MSB, 33-37, 39-63 for LSB
+     * @param value 7bits value
+     */
+    private void processHighResolutionControlChange(final int status, final int function, final int value) {
+        final int channel = status & 0xf;
+        final int control = function & 0x1f;
+        final int index = channel * 32 + control;
+        final int pendingBit = 1 << control;
+
+        if (function < 32) {
+            // queued in order with the timing of MSB, LSB later in the packet completes the value
+            final HighResolutionControlChangeEvent event = new HighResolutionControlChangeEvent(status, control, value << 7, timestamp);
+            highResolutionControlMsbs[index] = value;
+            pendingHighResolutionControlEvents[index] = event;
+            pendingHighResolutionControls[channel] |= pendingBit;
+            hasPendingHighResolutionControl = true;
+            addEventToQueue(event);
+        } else if ((pendingHighResolutionControls[channel] & pendingBit) != 0) {
+            // LSB for MSB in the packet
+            pendingHighResolutionControls[channel] &= ~pendingBit;
+            pendingHighResolutionControlEvents[index].setValue((highResolutionControlMsbs[index] << 7) | value);
+            pendingHighResolutionControlEvents[index] = null;
+        } else {
+            // LSB: fine adjustment for the last MSB
+            addEventToQueue(new HighResolutionControlChangeEvent(status, control, (highResolutionControlMsbs[index] << 7) | value, timestamp));
+        }
+    }
 
-                        case 0xf2:
-                            // 0xf2 Song Position Pointer. : 3bytes
-                            midiEventKind = midiEvent;
-                            midiState = MIDI_STATE_SIGNAL_3BYTES_2;
-                            break;
+    /**
+     * Forgets MSBs of 14bits Control Change in the packet, not followed by LSB
+     */
+    private void clearPendingHighResolutionControls() {
+        hasPendingHighResolutionControl = false;
+        for (int channel = 0; channel < 16; channel++) {
+            int pendingControls = pendingHighResolutionControls[channel];
+            pendingHighResolutionControls[channel] = 0;
+            while (pendingControls != 0) {
+                final int control = Integer.numberOfTrailingZeros(pendingControls);
+                pendingControls &= pendingControls - 1;
+                pendingHighResolutionControlEvents[channel * 32 + control] = null;
+            }
+        }
+    }
 
-                        case 0xf6:
-                            // 0xf6 Tune Request : 1byte
-                            addEventToQueue(new MidiEventWithTiming(timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiTuneRequest(sender);
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        case 0xf8:
-                            // 0xf8 Timing Clock : 1byte
-                            addEventToQueue(new MidiEventWithTiming(timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiTimingClock(sender);
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        case 0xfa:
-                            // 0xfa Start : 1byte
-                            addEventToQueue(new MidiEventWithTiming(timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiStart(sender);
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        case 0xfb:
-                            // 0xfb Continue : 1byte
-                            addEventToQueue(new MidiEventWithTiming(timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiContinue(sender);
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        case 0xfc:
-                            // 0xfc Stop : 1byte
-                            addEventToQueue(new MidiEventWithTiming(timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiStop(sender);
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        case 0xfe:
-                            // 0xfe Active Sensing : 1byte
-                            addEventToQueue(new MidiEventWithTiming(timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiActiveSensing(sender);
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        case 0xff:
-                            // 0xff Reset : 1byte
-                            addEventToQueue(new MidiEventWithTiming(timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiReset(sender);
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
+    /**
+     * Obtains the key for coalescing the message
+     *
+     * @param status the status byte
+     * @param data1 the first data byte
+     * @return the key, -1 if the message must not be coalesced
+     */
+    private static int getCoalescingKey(final int status, final int data1) {
+        final int channel = status & 0xf;
+        switch (status & 0xf0) {
+            case 0xa0:
+                return COALESCING_KEY_POLYPHONIC_AFTERTOUCH + channel * 128 + data1;
+            case 0xb0:
+                return COALESCIBLE_CONTROLS[data1] ? COALESCING_KEY_CONTROL_CHANGE + channel * 128 + data1 : -1;
+            case 0xd0:
+                return COALESCING_KEY_CHANNEL_AFTERTOUCH + channel;
+            case 0xe0:
+                return COALESCING_KEY_PITCH_WHEEL + channel;
+            default:
+                return -1;
+        }
+    }
 
-                        default:
-                            break;
-                    }
+    /**
+     * Overwrites the pending message with the same key, or adds a new message to event queue
+     *
+     * @param coalescingKey the key for the channel and controller
+     * @param status the status byte
+     * @param data1 the first data byte
+     * @param data2 the second data byte, 0 if not used
+     */
+    private void coalesceMessage(final int coalescingKey, final int status, final int data1, final int data2) {
+        final CoalescedMessageEvent event;
+        synchronized (coalescingLock) {
+            final CoalescedMessageEvent pendingEvent = pendingCoalescedEvents[coalescingKey];
+            if (pendingEvent != null) {
+                // not fired yet: deliver the latest value only
+                pendingEvent.data1 = data1;
+                pendingEvent.data2 = data2;
+                return;
+            }
+
+            event = new CoalescedMessageEvent(coalescingKey, status, data1, data2, timestamp);
+            event.postpone(lastCoalescedTimings[coalescingKey] + coalescingWindowMillis);
+            lastCoalescedTimings[coalescingKey] = event.getTiming();
+            pendingCoalescedEvents[coalescingKey] = event;
+        }
+
+        addEventToQueue(event);
+    }
+
+    /**
+     * Processes RPN/NRPN messages with Control Change
+     *
+     * @param status the status byte of Control Change
+     * @param function the control function
+     * @param value the control value
+     */
+    private void processParameterNumber(final int status, final int function, final int value) {
+        final int channel = status & 0xf;
+        switch (function) {
+            case 6:
+                // RPN/NRPN value MSB
+            case 38:
+                // RPN/NRPN value LSB
+            case 96:
+                // Data Increment
+            case 97: {
+                // Data Decrement
+                final int type;
+                final int rpnNrpnFunction;
+                if (rpnStatuses[channel] == RPN_STATUS_RPN) {
+                    type = ParameterNumberStore.TYPE_RPN;
+                    rpnNrpnFunction = rpnFunctions[channel];
+                } else if (rpnStatuses[channel] == RPN_STATUS_NRPN) {
+                    type = ParameterNumberStore.TYPE_NRPN;
+                    rpnNrpnFunction = nrpnFunctions[channel];
+                } else {
+                    break;
+                }
+
+                final int rpnNrpnValue;
+                switch (function) {
+                    case 6:
+                        rpnNrpnValue = parameterNumberStore.setMsb(channel, type, rpnNrpnFunction, value);
+                        break;
+                    case 38:
+                        rpnNrpnValue = parameterNumberStore.setLsb(channel, type, rpnNrpnFunction, value);
+                        break;
+                    case 96:
+                        rpnNrpnValue = parameterNumberStore.add(channel, type, rpnNrpnFunction, 1);
+                        break;
+                    default:
+                        rpnNrpnValue = parameterNumberStore.add(channel, type, rpnNrpnFunction, -1);
+                        break;
                 }
+                addEventToQueue(new ParameterNumberEvent(type == ParameterNumberStore.TYPE_NRPN, status, rpnNrpnFunction, rpnNrpnValue, timestamp));
                 break;
-                case 0x80:
-                case 0x90:
-                case 0xa0:
-                case 0xb0:
-                case 0xe0:
-                    // 3bytes pattern
-                    midiEventKind = midiEvent;
-                    midiState = MIDI_STATE_SIGNAL_3BYTES_2;
-                    break;
-                case 0xc0: // program change
-                case 0xd0: // channel after-touch
-                    // 2bytes pattern
-                    midiEventKind = midiEvent;
-                    midiState = MIDI_STATE_SIGNAL_2BYTES_2;
-                    break;
-                default:
-                    // 0x00 - 0x70: running status
-                    if ((midiEventKind & 0xf0) != 0xf0) {
-                        // previous event kind is multi-bytes pattern
-                        midiEventNote = midiEvent;
-                        midiState = MIDI_STATE_SIGNAL_3BYTES_3;
-                    }
-                    break;
             }
-        } else if (midiState == MIDI_STATE_SIGNAL_2BYTES_2) {
-            switch (midiEventKind & 0xf0) {
-                // 2bytes pattern
-                case 0xc0: // program change
-                    midiEventNote = midiEvent;
-                    addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiProgramChange(sender, getArg1() & 0xf, getArg2());
-                            }
-                        }
-                    });
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
-                case 0xd0: // channel after-touch
-                    midiEventNote = midiEvent;
-                    addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, timestamp) {
+            case 98: {
+                // NRPN parameter number LSB
+                nrpnFunctions[channel] = (short) ((nrpnFunctions[channel] & (0x7f << 7)) | (value & 0x7f));
+                rpnStatuses[channel] = RPN_STATUS_NRPN;
+                break;
+            }
+            case 99: {
+                // NRPN parameter number MSB
+                nrpnFunctions[channel] = (short) (((value & 0x7f) << 7) | (nrpnFunctions[channel] & 0x7f));
+                rpnStatuses[channel] = RPN_STATUS_NRPN;
+                break;
+            }
+            case 100: {
+                // RPN parameter number LSB
+                rpnFunctions[channel] = (short) ((rpnFunctions[channel] & (0x7f << 7)) | (value & 0x7f));
+                rpnStatuses[channel] = (byte) (rpnFunctions[channel] == RPN_FUNCTION_NULL ? RPN_STATUS_NONE : RPN_STATUS_RPN);
+                break;
+            }
+            case 101: {
+                // RPN parameter number MSB
+                rpnFunctions[channel] = (short) (((value & 0x7f) << 7) | (rpnFunctions[channel] & 0x7f));
+                rpnStatuses[channel] = (byte) (rpnFunctions[channel] == RPN_FUNCTION_NULL ? RPN_STATUS_NONE : RPN_STATUS_RPN);
+                break;
+            }
+            default:
+                // do nothing
+                break;
+        }
+    }
+
+    /**
+     * Starts a new SysEx
+     */
+    private void startSystemExclusive() {
+        synchronized (systemExclusiveLock) {
+            systemExclusiveStream.reset();
+            systemExclusiveStream.write(0xf0);
+            systemExclusiveLength = 1;
+            isSystemExclusiveOverflowed = false;
+            systemExclusivePendingTimestamp = -1;
+
+            // the dropped SysEx is skipped like the discarded overflow, to keep the timestamps
+            final MidiMessageFilter filter = midiMessageFilter;
+            isSystemExclusiveDropped = filter != null && filter.isDropped(0xf0, 0);
+            if (isSystemExclusiveDropped) {
+                isSystemExclusiveOverflowed = true;
+            }
+        }
+    }
+
+    /**
+     * Processes the byte with the high bit in the SysEx, must be called with systemExclusiveLock<br />
+     * The first byte is the timestamp, and the next byte decides the message: 'F7' ends the SysEx, 'F8' - 'FF' is System Real-Time message.
+     * The timestamp byte may have any value from '80' to 'FF'.
+     *
+     * @param timestampHigh the high bits of the timestamp, from the header
+     * @param midiEvent the event byte: '80' - 'FF'
+     * @return true if the SysEx has been finished
+     */
+    private boolean processSystemExclusiveStatus(final int timestampHigh, final int midiEvent) {
+        final int pendingTimestamp = systemExclusivePendingTimestamp;
+        if (pendingTimestamp < 0) {
+            systemExclusivePendingTimestamp = midiEvent;
+            return false;
+        }
+
+        if (midiEvent == 0xf7) {
+            systemExclusivePendingTimestamp = -1;
+            timestamp = timestampHigh | (pendingTimestamp & 0x7f);
+            endSystemExclusive();
+            return true;
+        }
+
+        if (midiEvent >= 0xf8) {
+            // System Real-Time message interleaved in SysEx: process the message as usual, and continue the SysEx
+            systemExclusivePendingTimestamp = -1;
+            timestamp = timestampHigh | (pendingTimestamp & 0x7f);
+            if (WAIT_TRANSITIONS[midiEvent] == TRANSITION_1BYTE) {
+                dispatchMessage(midiEvent, 0, 0);
+            }
+            return false;
+        }
+
+        // not a message: the byte is the timestamp for the next one
+        systemExclusivePendingTimestamp = midiEvent;
+        return false;
+    }
+
+    /**
+     * Appends the data bytes to the SysEx, must be called with systemExclusiveLock
+     *
+     * @param data the data bytes: '00' - '7F'
+     * @param offset the start offset in the data
+     * @param length the number of bytes
+     */
+    private void appendSystemExclusive(@NonNull final byte[] data, int offset, int length) {
+        while (length > 0) {
+            if (isSystemExclusiveOverflowed) {
+                return;
+            }
+
+            if (systemExclusiveChunkListener != null && systemExclusiveStream.size() >= systemExclusiveChunkSize) {
+                addSystemExclusiveChunkToQueue(systemExclusiveStream.toByteArray(), false);
+                systemExclusiveStream.reset();
+            }
+
+            int writeLength = length;
+            if (systemExclusiveMaxLength > 0) {
+                // leave the room for 'F7'
+                writeLength = Math.min(writeLength, systemExclusiveMaxLength - 1 - systemExclusiveLength);
+            }
+            if (systemExclusiveChunkListener != null) {
+                writeLength = Math.min(writeLength, systemExclusiveChunkSize - systemExclusiveStream.size());
+            }
+
+            if (writeLength <= 0) {
+                // reached to the maximum length
+                appendSystemExclusive(data[offset] & 0xff);
+                offset++;
+                length--;
+                continue;
+            }
+
+            systemExclusiveStream.write(data, offset, writeLength);
+            systemExclusiveLength += writeLength;
+            offset += writeLength;
+            length -= writeLength;
+        }
+    }
+
+    /**
+     * Appends a data byte to the SysEx, must be called with systemExclusiveLock
+     *
+     * @param midiEvent the data byte: '00' - '7F'
+     */
+    private void appendSystemExclusive(final int midiEvent) {
+        if (isSystemExclusiveOverflowed) {
+            return;
+        }
+
+        if (systemExclusiveMaxLength > 0 && systemExclusiveLength >= systemExclusiveMaxLength - 1) {
+            // no room for the data byte and 'F7'
+            isSystemExclusiveOverflowed = true;
+
+            if (systemExclusiveOverflowPolicy == SYSTEM_EXCLUSIVE_OVERFLOW_DISCARD) {
+                systemExclusiveStream.reset();
+
+                if (systemExclusiveChunkListener != null) {
+                    final OnMidiSystemExclusiveChunkListener chunkListener = systemExclusiveChunkListener;
+                    addEventToQueue(new MidiEventWithTiming(0xf0, timestamp) {
                         @Override
                         public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiChannelAftertouch(sender, getArg1() & 0xf, getArg2());
-                            }
+                            chunkListener.onMidiSystemExclusiveOverflow(sender);
                         }
                     });
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
-                case 0xf0: {
-                    switch (midiEventKind) {
-                        case 0xf1:
-                            // 0xf1 MIDI Time Code Quarter Frame. : 2bytes
-                            midiEventNote = midiEvent;
-                            addEventToQueue(new MidiEventWithTiming(midiEventNote, timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiTimeCodeQuarterFrame(sender, getArg1());
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        case 0xf3:
-                            // 0xf3 Song Select. : 2bytes
-                            midiEventNote = midiEvent;
-                            addEventToQueue(new MidiEventWithTiming(midiEventNote, timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiSongSelect(sender, getArg1());
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        default:
-                            // illegal state
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                    }
                 }
-                    break;
-                default:
-                    // illegal state
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
             }
-        } else if (midiState == MIDI_STATE_SIGNAL_3BYTES_2) {
-            switch (midiEventKind & 0xf0) {
-                case 0x80:
-                case 0x90:
-                case 0xa0:
-                case 0xb0:
-                case 0xe0:
-                case 0xf0:
-                    // 3bytes pattern
-                    midiEventNote = midiEvent;
-                    midiState = MIDI_STATE_SIGNAL_3BYTES_3;
-                    break;
-                default:
-                    // illegal state
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
+            return;
+        }
+
+        if (systemExclusiveChunkListener != null && systemExclusiveStream.size() >= systemExclusiveChunkSize) {
+            addSystemExclusiveChunkToQueue(systemExclusiveStream.toByteArray(), false);
+            systemExclusiveStream.reset();
+        }
+
+        systemExclusiveStream.write(midiEvent);
+        systemExclusiveLength++;
+    }
+
+    /**
+     * Finishes the SysEx with 'F7', must be called with systemExclusiveLock
+     */
+    private void endSystemExclusive() {
+        if (isSystemExclusiveDropped || (isSystemExclusiveOverflowed && systemExclusiveOverflowPolicy == SYSTEM_EXCLUSIVE_OVERFLOW_DISCARD)) {
+            // already discarded
+            return;
+        }
+
+        if (systemExclusiveChunkListener != null) {
+            if (systemExclusiveStream.size() >= systemExclusiveChunkSize) {
+                addSystemExclusiveChunkToQueue(systemExclusiveStream.toByteArray(), false);
+                systemExclusiveStream.reset();
             }
-        } else if (midiState == MIDI_STATE_SIGNAL_3BYTES_3) {
-            switch (midiEventKind & 0xf0) {
-                // 3bytes pattern
-                case 0x80: // note off
-                    midiEventVelocity = midiEvent;
-                    addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiNoteOff(sender, getArg1() & 0xf, getArg2(), getArg3());
-                            }
-                        }
-                    });
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
-                case 0x90: // note on
-                    midiEventVelocity = midiEvent;
-                    addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                if (midiEventVelocity == 0) {
-                                    midiInputEventListener.onMidiNoteOff(sender, getArg1() & 0xf, getArg2(), getArg3());
-                                } else {
-                                    midiInputEventListener.onMidiNoteOn(sender, getArg1() & 0xf, getArg2(), getArg3());
-                                }
-                            }
-                        }
-                    });
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
-                case 0xa0: // control polyphonic key pressure
-                    midiEventVelocity = midiEvent;
-                    addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiPolyphonicAftertouch(sender, getArg1() & 0xf, getArg2(), getArg3());
-                            }
-                        }
-                    });
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
-                case 0xb0: // control change
-                    midiEventVelocity = midiEvent;
-
-                    // process RPN/NRPN messages
-                    switch (midiEventNote) {
-                        case 6: {
-                            // RPN/NRPN value MSB
-                            rpnNrpnValueMsb = midiEventVelocity & 0x7f;
-                            if (rpnStatus == RPN_STATUS_RPN) {
-                                rpnNrpnFunction = ((rpnFunctionMsb & 0x7f) << 7) | (rpnFunctionLsb & 0x7f);
-                                rpnCacheMsb.put(rpnNrpnFunction, rpnNrpnValueMsb);
-                                rpnNrpnValueLsb = rpnCacheLsb.get(rpnNrpnFunction, 0/*if not found*/);
-                                addEventToQueue(new MidiEventWithTiming(midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), timestamp) {
-                                    @Override
-                                    public void run() {
-                                        if (midiInputEventListener != null) {
-                                            midiInputEventListener.onRPNMessage(sender, getArg1() & 0xf, getArg2() & 0x3fff, getArg3() & 0x3fff);
-                                        }
-                                    }
-                                });
-                            } else if (rpnStatus == RPN_STATUS_NRPN) {
-                                rpnNrpnFunction = ((nrpnFunctionMsb & 0x7f) << 7) | (nrpnFunctionLsb & 0x7f);
-                                nrpnCacheMsb.put(rpnNrpnFunction, rpnNrpnValueMsb);
-                                rpnNrpnValueLsb = nrpnCacheLsb.get(rpnNrpnFunction, 0/*if not found*/);
-                                addEventToQueue(new MidiEventWithTiming(midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), timestamp) {
-                                    @Override
-                                    public void run() {
-                                        if (midiInputEventListener != null) {
-                                            midiInputEventListener.onNRPNMessage(sender, getArg1() & 0xf, getArg2() & 0x3fff, getArg3() & 0x3fff);
-                                        }
-                                    }
-                                });
-                            }
-                            break;
-                        }
-                        case 38: {
-                            // RPN/NRPN value LSB
-                            rpnNrpnValueLsb = midiEventVelocity & 0x7f;
-                            if (rpnStatus == RPN_STATUS_RPN) {
-                                rpnNrpnFunction = ((rpnFunctionMsb & 0x7f) << 7) | (rpnFunctionLsb & 0x7f);
-                                rpnNrpnValueMsb = rpnCacheMsb.get(rpnNrpnFunction, 0/*if not found*/);
-                                rpnCacheLsb.put(rpnNrpnFunction, rpnNrpnValueLsb);
-                                addEventToQueue(new MidiEventWithTiming(midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), timestamp) {
-                                    @Override
-                                    public void run() {
-                                        if (midiInputEventListener != null) {
-                                            midiInputEventListener.onRPNMessage(sender, getArg1() & 0xf, getArg2() & 0x3fff, getArg3() & 0x3fff);
-                                        }
-                                    }
-                                });
-                            } else if (rpnStatus == RPN_STATUS_NRPN) {
-                                rpnNrpnFunction = ((nrpnFunctionMsb & 0x7f) << 7) | (nrpnFunctionLsb & 0x7f);
-                                rpnNrpnValueMsb = nrpnCacheMsb.get(rpnNrpnFunction, 0/*if not found*/);
-                                nrpnCacheLsb.put(rpnNrpnFunction, rpnNrpnValueLsb);
-                                addEventToQueue(new MidiEventWithTiming(midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), timestamp) {
-                                    @Override
-                                    public void run() {
-                                        if (midiInputEventListener != null) {
-                                            midiInputEventListener.onNRPNMessage(sender, getArg1() & 0xf, getArg2() & 0x3fff, getArg3() & 0x3fff);
-                                        }
-                                    }
-                                });
+            systemExclusiveStream.write(0xf7);
+            addSystemExclusiveChunkToQueue(systemExclusiveStream.toByteArray(), true);
+            return;
+        }
+
+        systemExclusiveStream.write(0xf7);
+        addEventToQueue(new MidiEventWithTiming(systemExclusiveStream.toByteArray(), timestamp) {
+            @Override
+            public void run() {
+                if (midiInputEventListener != null) {
+                    midiInputEventListener.onMidiSystemExclusive(sender, getArray());
+                }
+            }
+        });
+    }
+
+    /**
+     * Add a SysEx chunk to event queue
+     *
+     * @param chunk the part of SysEx
+     * @param isLastChunk true if the chunk is the end of the message
+     */
+    private void addSystemExclusiveChunkToQueue(@NonNull byte[] chunk, final boolean isLastChunk) {
+        final OnMidiSystemExclusiveChunkListener chunkListener = systemExclusiveChunkListener;
+
+        // all chunks have the same priority('F0'), to keep the order of chunks with same timing
+        addEventToQueue(new MidiEventWithTiming(0xf0, chunk, timestamp) {
+            @Override
+            public void run() {
+                chunkListener.onMidiSystemExclusiveChunk(sender, getArray(), isLastChunk);
+            }
+        });
+    }
+
+    /**
+     * Updates incoming data<br />
+     * The whole packet is decoded in one loop, the transitions from {@link #MIDI_STATE_WAIT} are looked up from the table.
+     * All messages in the packet are queued at once, after the packet has been decoded.
+     *
+     * @param data incoming data
+     */
+    public void parse(@NonNull byte[] data) {
+        final int length = data.length;
+        if (length < 2) {
+            return;
+        }
+
+        if (noteReleaseTimeoutMillis > 0) {
+            lastPacketReceivedMillis = System.currentTimeMillis();
+        }
+
+        final int header = data[0] & 0xff;
+        final int timestampHigh = (header & 0x3f) << 7;
+        int state = midiState;
+        for (int i = 1; i < length; i++) {
+            final int midiEvent = data[i] & 0xff;
+            switch (state) {
+                case MIDI_STATE_TIMESTAMP:
+                    if (midiEvent >= 0x80) {
+                        timestamp = timestampHigh | (midiEvent & 0x7f);
+                        state = MIDI_STATE_WAIT;
+                        break;
+                    }
+                    // running status without timestamp: the previous timestamp is used
+                    // fall through
+                case MIDI_STATE_WAIT:
+                    switch (WAIT_TRANSITIONS[midiEvent]) {
+                        case TRANSITION_RUNNING_STATUS:
+                            if (runningStatus == 0) {
+                                // no running status: ignore the data byte
+                                state = MIDI_STATE_WAIT;
+                            } else if (WAIT_TRANSITIONS[runningStatus] == TRANSITION_2BYTES) {
+                                midiEventKind = runningStatus;
+                                dispatchMessage(midiEventKind, midiEvent, 0);
+                                state = MIDI_STATE_TIMESTAMP;
+                            } else {
+                                midiEventKind = runningStatus;
+                                midiEventNote = midiEvent;
+                                state = MIDI_STATE_SIGNAL_3BYTES_3;
                             }
                             break;
-                        }
-                        case 98: {
-                            // NRPN parameter number LSB
-                            nrpnFunctionLsb = midiEventVelocity & 0x7f;
-                            rpnStatus = RPN_STATUS_NRPN;
+                        case TRANSITION_2BYTES:
+                            midiEventKind = midiEvent;
+                            // System Common messages cancel the running status
+                            runningStatus = midiEvent < 0xf0 ? midiEvent : 0;
+                            state = MIDI_STATE_SIGNAL_2BYTES_2;
                             break;
-                        }
-                        case 99: {
-                            // NRPN parameter number MSB
-                            nrpnFunctionMsb = midiEventVelocity & 0x7f;
-                            rpnStatus = RPN_STATUS_NRPN;
+                        case TRANSITION_3BYTES:
+                            midiEventKind = midiEvent;
+                            runningStatus = midiEvent < 0xf0 ? midiEvent : 0;
+                            state = MIDI_STATE_SIGNAL_3BYTES_2;
                             break;
-                        }
-                        case 100: {
-                            // RPN parameter number LSB
-                            rpnFunctionLsb = midiEventVelocity & 0x7f;
-                            if (rpnFunctionMsb == 0x7f && rpnFunctionLsb == 0x7f) {
-                                rpnStatus = RPN_STATUS_NONE;
-                            } else {
-                                rpnStatus = RPN_STATUS_RPN;
+                        case TRANSITION_1BYTE:
+                            if (midiEvent < 0xf8) {
+                                // Tune Request cancels the running status, System Real-Time messages don't
+                                runningStatus = 0;
                             }
+                            dispatchMessage(midiEvent, 0, 0);
+                            state = MIDI_STATE_TIMESTAMP;
                             break;
-                        }
-                        case 101: {
-                            // RPN parameter number MSB
-                            rpnFunctionMsb = midiEventVelocity & 0x7f;
-                            if (rpnFunctionMsb == 0x7f && rpnFunctionLsb == 0x7f) {
-                                rpnStatus = RPN_STATUS_NONE;
-                            } else {
-                                rpnStatus = RPN_STATUS_RPN;
-                            }
+                        case TRANSITION_SYSEX:
+                            runningStatus = 0;
+                            startSystemExclusive();
+                            state = MIDI_STATE_SIGNAL_SYSEX;
                             break;
-                        }
                         default:
-                            // do nothing
+                            // undefined message: ignore
+                            state = MIDI_STATE_WAIT;
                             break;
                     }
+                    break;
 
-                    addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiControlChange(sender, getArg1() & 0xf, getArg2(), getArg3());
-                            }
-                        }
-                    });
-                    midiState = MIDI_STATE_TIMESTAMP;
+                case MIDI_STATE_SIGNAL_2BYTES_2:
+                    if (midiEvent >= 0x80) {
+                        // the message has been broken: the byte is the timestamp of the next message
+                        timestamp = timestampHigh | (midiEvent & 0x7f);
+                        state = MIDI_STATE_WAIT;
+                        break;
+                    }
+                    dispatchMessage(midiEventKind, midiEvent, 0);
+                    state = MIDI_STATE_TIMESTAMP;
                     break;
-                case 0xe0: // pitch bend
-                    midiEventVelocity = midiEvent;
-                    addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiPitchWheel(sender, getArg1() & 0xf, (getArg2() & 0x7f) | ((getArg3() & 0x7f) << 7));
-                            }
-                        }
-                    });
-                    midiState = MIDI_STATE_TIMESTAMP;
+
+                case MIDI_STATE_SIGNAL_3BYTES_2:
+                    if (midiEvent >= 0x80) {
+                        timestamp = timestampHigh | (midiEvent & 0x7f);
+                        state = MIDI_STATE_WAIT;
+                        break;
+                    }
+                    midiEventNote = midiEvent;
+                    state = MIDI_STATE_SIGNAL_3BYTES_3;
                     break;
-                case 0xf0: // Song Position Pointer.
-                    midiEventVelocity = midiEvent;
-                    addEventToQueue(new MidiEventWithTiming(midiEventNote, midiEventVelocity, timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiSongPositionPointer(sender, (getArg1() & 0x7f) | ((getArg2() & 0x7f) << 7));
+
+                case MIDI_STATE_SIGNAL_3BYTES_3:
+                    if (midiEvent >= 0x80) {
+                        timestamp = timestampHigh | (midiEvent & 0x7f);
+                        state = MIDI_STATE_WAIT;
+                        break;
+                    }
+                    dispatchMessage(midiEventKind, midiEventNote, midiEvent);
+                    state = MIDI_STATE_TIMESTAMP;
+                    break;
+
+                case MIDI_STATE_SIGNAL_SYSEX:
+                    if (midiEvent < 0x80) {
+                        // copy the following data bytes at once
+                        int end = i + 1;
+                        while (end < length && data[end] >= 0) {
+                            end++;
+                        }
+                        synchronized (systemExclusiveLock) {
+                            // the timestamp without the following message is discarded
+                            systemExclusivePendingTimestamp = -1;
+                            appendSystemExclusive(data, i, end - i);
+                        }
+                        i = end - 1;
+                    } else {
+                        synchronized (systemExclusiveLock) {
+                            if (processSystemExclusiveStatus(timestampHigh, midiEvent)) {
+                                // the end of message
+                                state = MIDI_STATE_TIMESTAMP;
                             }
                         }
-                    });
-                    midiState = MIDI_STATE_TIMESTAMP;
+                    }
                     break;
+
                 default:
-                    // illegal state
-                    midiState = MIDI_STATE_TIMESTAMP;
+                    state = MIDI_STATE_TIMESTAMP;
                     break;
             }
-        } else if (midiState == MIDI_STATE_SIGNAL_SYSEX) {
-            if (midiEvent == 0xf7) {
-                // the end of message
-                synchronized (systemExclusiveLock) {
-                    // last written byte is for timestamp
-                    int replacedEvent = systemExclusiveStream.replaceLastByte(midiEvent);
-                    if (replacedEvent >= 0) {
-                        timestamp = ((header & 0x3f) << 7) | (replacedEvent & 0x7f);
-                    }
-                    addEventToQueue(new MidiEventWithTiming(systemExclusiveStream.toByteArray(), timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiSystemExclusive(sender, getArray());
-                            }
-                        }
-                    });
-
-                    // for error recovery
-                    systemExclusiveRecoveryStream.reset();
-                    try {
-                        systemExclusiveStream.writeTo(systemExclusiveRecoveryStream);
-                    } catch (IOException ignored) {
-                    }
-                    systemExclusiveRecoveryStream.replaceLastByte(replacedEvent);
-                    systemExclusiveRecoveryStream.write(midiEvent);
-                }
-                midiState = MIDI_STATE_TIMESTAMP;
-            } else {
-                synchronized (systemExclusiveLock) {
-                    systemExclusiveStream.write(midiEvent);
-                }
-            }
         }
-    }
+        midiState = state;
 
-    /**
-     * Updates incoming data
-     *
-     * @param data incoming data
-     */
-    public void parse(@NonNull byte[] data) {
-        if (data.length > 1) {
-            int header = data[0] & 0xff;
-            for (int i = 1; i < data.length; i++) {
-                parseMidiEvent(header, data[i]);
-            }
+        if (hasPendingHighResolutionControl) {
+            clearPendingHighResolutionControls();
         }
+        flushDecodedEvents();
     }
 
     private final Collection<MidiEventWithTiming> queuedEventList = new ArrayList<>();
 
+    // held while firing the events, the listener is not called from the dequeue thread and releaseSoundingNotes() at once
+    private final Object dispatchLock = new Object();
+
+    // the events decoded from the current packet, used only on the parsing thread
+    private final List<MidiEventWithTiming> decodedEventBatch = new ArrayList<>();
+
     /**
-     * Add a event to event queue
+     * Add a event to the batch of the current packet, the batch will be queued by {@link #flushDecodedEvents()}
      * @param event the MIDI Event
      */
     private void addEventToQueue(MidiEventWithTiming event) {
+        decodedEventBatch.add(event);
+    }
+
+    /**
+     * Add all events decoded from the packet to event queue at once
+     */
+    private void flushDecodedEvents() {
+        if (decodedEventBatch.isEmpty()) {
+            return;
+        }
+
         synchronized (queuedEventList) {
-            queuedEventList.add(event);
+            queuedEventList.addAll(decodedEventBatch);
         }
+        decodedEventBatch.clear();
         eventDequeueThread.interrupt();
     }
 
@@ -848,29 +1440,37 @@ public final class BleMidiParser {
         @Override
         public void run() {
             while (isRunning) {
-                // deque events
-                dequeuedEvents.clear();
-                final long currentTime = System.currentTimeMillis();
-                synchronized (queuedEventList) {
-                    for (MidiEventWithTiming event : queuedEventList) {
-                        if (event.getTiming() <= currentTime) {
-                            // collect past events
-                            dequeuedEvents.add(event);
+                synchronized (dispatchLock) {
+                    // deque events
+                    dequeuedEvents.clear();
+                    final long currentTime = System.currentTimeMillis();
+                    synchronized (queuedEventList) {
+                        for (MidiEventWithTiming event : queuedEventList) {
+                            if (event.getTiming() <= currentTime) {
+                                // collect past events
+                                dequeuedEvents.add(event);
+                            }
                         }
+                        queuedEventList.removeAll(dequeuedEvents);
                     }
-                    queuedEventList.removeAll(dequeuedEvents);
-                }
 
-                if (!dequeuedEvents.isEmpty()) {
-                    // sort event order
-                    Collections.sort(dequeuedEvents, midiTimerTaskComparator);
+                    if (!dequeuedEvents.isEmpty()) {
+                        // sort event order
+                        Collections.sort(dequeuedEvents, midiTimerTaskComparator);
 
-                    // fire events
-                    for (MidiEventWithTiming event : dequeuedEvents) {
-                        event.run();
+                        // fire events
+                        for (MidiEventWithTiming event : dequeuedEvents) {
+                            event.run();
+                        }
                     }
                 }
 
+                // release hanging notes after long silence
+                final int noteReleaseTimeout = noteReleaseTimeoutMillis;
+                if (noteReleaseTimeout > 0 && noteStateTracker.getSoundingNoteCount() > 0 && System.currentTimeMillis() - lastPacketReceivedMillis > noteReleaseTimeout) {
+                    releaseSoundingNotes();
+                }
+
                 // sleep until interrupt
                 try {
                     boolean isEmpty;
@@ -878,7 +1478,7 @@ public final class BleMidiParser {
                         isEmpty = queuedEventList.isEmpty();
                     }
                     if (isEmpty) {
-                        Thread.sleep(1000);
+                        Thread.sleep(noteReleaseTimeout > 0 ? Math.min(noteReleaseTimeout, 1000) : 1000);
                     } else {
                         Thread.sleep(1);
                     }
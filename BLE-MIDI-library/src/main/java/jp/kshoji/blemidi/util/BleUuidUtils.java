@@ -3,6 +3,8 @@ package jp.kshoji.blemidi.util;
 import android.os.ParcelUuid;
 import android.support.annotation.NonNull;
 
+import java.util.HashSet;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -81,6 +83,51 @@ public final class BleUuidUtils {
         }
     }
 
+    /**
+     * Precompiled matcher for the set of UUIDs<br />
+     * The UUIDs are normalized once into a hash set of 128bits UUIDs and bitsets of 16bits values,
+     * so {@link #matches(UUID)} is constant time without allocation, and gives the same result as {@link BleUuidUtils#matches(UUID, UUID)} with any of the UUIDs.
+     */
+    public static final class UuidMatcher {
+        private final Set<UUID> fullUuids = new HashSet<>();
+        // 16bits values of all UUIDs, for matching short style UUIDs
+        private final long[] allShortValues = new long[65536 / 64];
+        // 16bits values of short style UUIDs, for matching any UUIDs
+        private final long[] shortUuidValues = new long[65536 / 64];
+
+        /**
+         * Constructor
+         *
+         * @param uuids the UUIDs to match, full style or short style
+         */
+        public UuidMatcher(@NonNull final UUID... uuids) {
+            for (UUID uuid : uuids) {
+                final int shortValue = toShortValue(uuid);
+                allShortValues[shortValue >> 6] |= 1L << (shortValue & 0x3f);
+                if (isShortUuid(uuid)) {
+                    shortUuidValues[shortValue >> 6] |= 1L << (shortValue & 0x3f);
+                } else {
+                    fullUuids.add(uuid);
+                }
+            }
+        }
+
+        /**
+         * Check if the UUID matches any of the UUIDs
+         *
+         * @param uuid the UUID to be compared
+         * @return true if matches
+         */
+        public boolean matches(@NonNull final UUID uuid) {
+            final int shortValue = toShortValue(uuid);
+            final long shortValueBit = 1L << (shortValue & 0x3f);
+            if (isShortUuid(uuid)) {
+                return (allShortValues[shortValue >> 6] & shortValueBit) != 0;
+            }
+            return (shortUuidValues[shortValue >> 6] & shortValueBit) != 0 || fullUuids.contains(uuid);
+        }
+    }
+
     /**
      * Check if the specified UUID style is short style.
      *
@@ -0,0 +1,305 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiClockStatusListener;
+
+/**
+ * Follower for incoming MIDI Clock<br />
+ * Fed by {@link BleMidiParser} with BLE MIDI timestamps of Timing Clock, and calculates the smoothed tempo with a delay-locked loop.
+ * The tempo, beat phase and transport status can be obtained at any time, without handling each Timing Clock event.
+ *
+ * @author K.Shoji
+ */
+public final class MidiClockTracker {
+    private static final int TICKS_PER_QUARTER_NOTE = 24;
+    private static final int TICKS_PER_SONG_POSITION = 6;
+    private static final int MAX_TIMESTAMP = 8192;
+    private static final long CLOCK_TIMEOUT_MILLIS = 1000;
+    private static final double DEFAULT_BANDWIDTH = 1.0;
+    private static final double DEFAULT_TEMPO_CHANGE_THRESHOLD = 0.5;
+
+    private final double bandwidth;
+    private OnMidiClockStatusListener clockStatusListener = null;
+    private double tempoChangeThreshold = DEFAULT_TEMPO_CHANGE_THRESHOLD;
+
+    // timeline reconstructed from the BLE MIDI timestamps
+    private int lastTimestamp = -1;
+    private long timelineMillis;
+    private int zeroTimestampCount = 0;
+    private long lastTickReceivedMillis;
+
+    // delay-locked loop
+    private int lockedTicks = 0;
+    private double predictedTickTime;
+    private double tickPeriod;
+    private double notifiedTempo = 0;
+
+    // transport
+    private boolean isPlaying = false;
+    private boolean isWaitingFirstTick = false;
+    private long ticksFromSongStart = 0;
+
+    /**
+     * Constructor with default loop bandwidth(1 Hz)
+     */
+    public MidiClockTracker() {
+        this(DEFAULT_BANDWIDTH);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param bandwidth the bandwidth of the loop filter in Hz, smaller value is smoother, larger value follows tempo changes faster
+     * @throws IllegalArgumentException if the bandwidth is not positive
+     */
+    public MidiClockTracker(double bandwidth) throws IllegalArgumentException {
+        if (!(bandwidth > 0)) {
+            throw new IllegalArgumentException("bandwidth must be positive: " + bandwidth);
+        }
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Sets {@link jp.kshoji.blemidi.listener.OnMidiClockStatusListener}, called on the parsing thread
+     *
+     * @param clockStatusListener the listener
+     * @param tempoChangeThreshold the minimum tempo difference in BPM to notify
+     */
+    public synchronized void setOnMidiClockStatusListener(@Nullable OnMidiClockStatusListener clockStatusListener, double tempoChangeThreshold) {
+        this.clockStatusListener = clockStatusListener;
+        this.tempoChangeThreshold = tempoChangeThreshold;
+    }
+
+    /**
+     * Obtains the smoothed tempo
+     *
+     * @return the tempo in BPM, 0 if the clock is not received
+     */
+    public synchronized double getTempo() {
+        if (lockedTicks < 2 || System.currentTimeMillis() - lastTickReceivedMillis > CLOCK_TIMEOUT_MILLIS) {
+            return 0;
+        }
+        return 60000.0 / (tickPeriod * TICKS_PER_QUARTER_NOTE);
+    }
+
+    /**
+     * Obtains the position in the current beat
+     *
+     * @return 0.0(the beginning of the beat) - 1.0(the end of the beat)
+     */
+    public synchronized double getBeatPhase() {
+        if (lockedTicks < 2) {
+            return 0;
+        }
+
+        double tickFraction = (System.currentTimeMillis() - lastTickReceivedMillis) / tickPeriod;
+        tickFraction = Math.max(0.0, Math.min(tickFraction, 1.0));
+        return ((ticksFromSongStart % TICKS_PER_QUARTER_NOTE) + tickFraction) / TICKS_PER_QUARTER_NOTE;
+    }
+
+    /**
+     * Checks if Start or Continue has been received
+     *
+     * @return true if playing
+     */
+    public synchronized boolean isPlaying() {
+        return isPlaying;
+    }
+
+    /**
+     * Obtains the current Song Position
+     *
+     * @return the position in MIDI beats(sixteenth notes)
+     */
+    public synchronized int getSongPosition() {
+        return (int) (ticksFromSongStart / TICKS_PER_SONG_POSITION);
+    }
+
+    /**
+     * Resets the tracking status
+     */
+    public synchronized void reset() {
+        lastTimestamp = -1;
+        zeroTimestampCount = 0;
+        lockedTicks = 0;
+        notifiedTempo = 0;
+        isPlaying = false;
+        isWaitingFirstTick = false;
+        ticksFromSongStart = 0;
+    }
+
+    /**
+     * Timing Clock received
+     *
+     * @param sender the device sent this message
+     * @param timestamp BLE MIDI timestamp
+     */
+    void onTimingClock(@NonNull MidiInputDevice sender, int timestamp) {
+        OnMidiClockStatusListener listener;
+        double tempo;
+        synchronized (this) {
+            final long currentTimeMillis = System.currentTimeMillis();
+            if (lockedTicks > 0 && currentTimeMillis - lastTickReceivedMillis > CLOCK_TIMEOUT_MILLIS) {
+                // the clock has been lost: restart tracking
+                lockedTicks = 0;
+                lastTimestamp = -1;
+            }
+            lastTickReceivedMillis = currentTimeMillis;
+
+            updateTickTime(updateTimeline(timestamp, currentTimeMillis));
+
+            if (isPlaying) {
+                if (isWaitingFirstTick) {
+                    // the first Timing Clock after Start is the beginning of the song position
+                    isWaitingFirstTick = false;
+                } else {
+                    ticksFromSongStart++;
+                }
+            }
+
+            if (lockedTicks < 2 || clockStatusListener == null) {
+                return;
+            }
+            tempo = 60000.0 / (tickPeriod * TICKS_PER_QUARTER_NOTE);
+            if (Math.abs(tempo - notifiedTempo) < tempoChangeThreshold) {
+                return;
+            }
+            notifiedTempo = tempo;
+            listener = clockStatusListener;
+        }
+
+        listener.onMidiClockTempoChanged(sender, tempo);
+    }
+
+    /**
+     * Start received
+     *
+     * @param sender the device sent this message
+     */
+    void onStart(@NonNull MidiInputDevice sender) {
+        synchronized (this) {
+            ticksFromSongStart = 0;
+        }
+        updateTransport(sender, true);
+    }
+
+    /**
+     * Continue received
+     *
+     * @param sender the device sent this message
+     */
+    void onContinue(@NonNull MidiInputDevice sender) {
+        updateTransport(sender, true);
+    }
+
+    /**
+     * Stop received
+     *
+     * @param sender the device sent this message
+     */
+    void onStop(@NonNull MidiInputDevice sender) {
+        updateTransport(sender, false);
+    }
+
+    /**
+     * Song Position Pointer received
+     *
+     * @param position 0-16383
+     */
+    synchronized void onSongPositionPointer(int position) {
+        ticksFromSongStart = (long) position * TICKS_PER_SONG_POSITION;
+    }
+
+    /**
+     * Updates the transport status, and notifies to the listener
+     *
+     * @param sender the device sent this message
+     * @param playing the new status
+     */
+    private void updateTransport(@NonNull MidiInputDevice sender, boolean playing) {
+        OnMidiClockStatusListener listener;
+        int songPosition;
+        synchronized (this) {
+            isPlaying = playing;
+            isWaitingFirstTick = playing;
+            listener = clockStatusListener;
+            songPosition = (int) (ticksFromSongStart / TICKS_PER_SONG_POSITION);
+        }
+
+        if (listener != null) {
+            listener.onMidiClockTransportChanged(sender, playing, songPosition);
+        }
+    }
+
+    /**
+     * Converts 13 bits BLE MIDI timestamp to the continuous time
+     *
+     * @param timestamp BLE MIDI timestamp
+     * @param currentTimeMillis the received time, used if the device doesn't send timestamps
+     * @return the time in milliseconds
+     */
+    private long updateTimeline(int timestamp, long currentTimeMillis) {
+        if (timestamp == 0) {
+            zeroTimestampCount++;
+        } else {
+            zeroTimestampCount = 0;
+        }
+
+        if (zeroTimestampCount >= 3) {
+            // timestamp is always zero: use received time
+            lastTimestamp = -1;
+            timelineMillis = currentTimeMillis;
+        } else if (lastTimestamp < 0) {
+            timelineMillis = currentTimeMillis;
+        } else {
+            int delta = (timestamp - lastTimestamp + MAX_TIMESTAMP) % MAX_TIMESTAMP;
+            if (delta > MAX_TIMESTAMP / 2) {
+                // the timestamp goes backward slightly
+                delta -= MAX_TIMESTAMP;
+            }
+            timelineMillis += delta;
+        }
+        lastTimestamp = zeroTimestampCount >= 3 ? -1 : timestamp;
+
+        return timelineMillis;
+    }
+
+    /**
+     * Updates the delay-locked loop with the tick time
+     *
+     * @param tickTime the time of Timing Clock
+     */
+    private void updateTickTime(double tickTime) {
+        if (lockedTicks == 0) {
+            predictedTickTime = tickTime;
+            lockedTicks = 1;
+            return;
+        }
+
+        if (lockedTicks == 1) {
+            if (tickTime <= predictedTickTime) {
+                // the same timestamp: wait for the next tick
+                return;
+            }
+            tickPeriod = tickTime - predictedTickTime;
+            predictedTickTime = tickTime + tickPeriod;
+            lockedTicks = 2;
+            return;
+        }
+
+        // second order loop, the coefficients are calculated from the bandwidth
+        final double omega = 2.0 * Math.PI * bandwidth * tickPeriod / 1000.0;
+        final double b = Math.sqrt(2.0) * omega;
+        final double c = omega * omega;
+
+        final double error = tickTime - predictedTickTime;
+        predictedTickTime += b * error + tickPeriod;
+        tickPeriod = Math.max(1.0, tickPeriod + c * error);
+        if (lockedTicks < Integer.MAX_VALUE) {
+            lockedTicks++;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package jp.kshoji.blemidi.util;
+
+/**
+ * Filter for the decoded MIDI messages, evaluated by {@link BleMidiParser} before the messages are scheduled<br />
+ * The dropped messages are configured as bitmasks: message types, channels, and Control Change numbers.
+ * The messages dropped by any of the masks are not queued, and not delivered to the listeners.
+ *
+ * @author K.Shoji
+ */
+public final class MidiMessageFilter {
+    // bit 0-6: channel messages 0x8n - 0xEn, bit 8-23: system messages 0xF0 - 0xFF
+    private volatile int droppedStatuses = 0;
+    // bit 0-15: channels
+    private volatile int droppedChannels = 0;
+    // bit 0-63: CC 0-63, bit 64-127: CC 64-127
+    private volatile long droppedControlsLow = 0;
+    private volatile long droppedControlsHigh = 0;
+
+    /**
+     * Obtains the bit for the message type
+     *
+     * @param status the status byte
+     * @return the bit of droppedStatuses
+     */
+    private static int getStatusBit(int status) {
+        if (status < 0xf0) {
+            return 1 << ((status >> 4) - 8);
+        }
+        return 1 << (8 + (status & 0xf));
+    }
+
+    /**
+     * Sets whether the message type is dropped
+     *
+     * @param status the status byte: 0x80 - 0xE0 for channel messages(the channel bits are ignored), 0xF0 - 0xFF for system messages
+     * @param dropped true to drop the messages
+     * @throws IllegalArgumentException if the status byte is out of range
+     */
+    public synchronized void setStatusDropped(int status, boolean dropped) throws IllegalArgumentException {
+        if (status < 0x80 || status > 0xff) {
+            throw new IllegalArgumentException("Invalid status byte: " + status);
+        }
+
+        if (dropped) {
+            droppedStatuses |= getStatusBit(status);
+        } else {
+            droppedStatuses &= ~getStatusBit(status);
+        }
+    }
+
+    /**
+     * Sets whether the channel messages of the channel are dropped
+     *
+     * @param channel 0-15
+     * @param dropped true to drop the messages
+     * @throws IllegalArgumentException if the channel is out of range
+     */
+    public synchronized void setChannelDropped(int channel, boolean dropped) throws IllegalArgumentException {
+        if (channel < 0 || channel > 15) {
+            throw new IllegalArgumentException("Invalid channel: " + channel);
+        }
+
+        if (dropped) {
+            droppedChannels |= 1 << channel;
+        } else {
+            droppedChannels &= ~(1 << channel);
+        }
+    }
+
+    /**
+     * Sets whether the Control Change with the control function is dropped
+     *
+     * @param function 0-127
+     * @param dropped true to drop the messages
+     * @throws IllegalArgumentException if the function is out of range
+     */
+    public synchronized void setControlChangeDropped(int function, boolean dropped) throws IllegalArgumentException {
+        if (function < 0 || function > 127) {
+            throw new IllegalArgumentException("Invalid control function: " + function);
+        }
+
+        final long bit = 1L << (function & 0x3f);
+        if (function < 64) {
+            droppedControlsLow = dropped ? droppedControlsLow | bit : droppedControlsLow & ~bit;
+        } else {
+            droppedControlsHigh = dropped ? droppedControlsHigh | bit : droppedControlsHigh & ~bit;
+        }
+    }
+
+    /**
+     * Passes all messages
+     */
+    public synchronized void clear() {
+        droppedStatuses = 0;
+        droppedChannels = 0;
+        droppedControlsLow = 0;
+        droppedControlsHigh = 0;
+    }
+
+    /**
+     * Checks if the message is dropped
+     *
+     * @param status the status byte
+     * @param data1 the first data byte, used for Control Change
+     * @return true if the message is dropped
+     */
+    public boolean isDropped(int status, int data1) {
+        if ((droppedStatuses & getStatusBit(status)) != 0) {
+            return true;
+        }
+        if (status >= 0xf0) {
+            return false;
+        }
+        if ((droppedChannels & (1 << (status & 0xf))) != 0) {
+            return true;
+        }
+        if ((status & 0xf0) == 0xb0) {
+            return ((data1 < 64 ? droppedControlsLow : droppedControlsHigh) & (1L << (data1 & 0x3f))) != 0;
+        }
+        return false;
+    }
+}
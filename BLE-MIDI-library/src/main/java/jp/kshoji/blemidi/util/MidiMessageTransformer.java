@@ -0,0 +1,222 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Transformer for channel messages: note remap(transpose), velocity curve, channel remap and Control Change remap<br />
+ * Every transformation is a lookup table, so transforming a message costs a few array lookups without allocation.
+ * The tables are replaced on each configuration, so the transformer can be reconfigured while the messages are transformed on another thread.<br />
+ * Changing the note map while notes are sounding may leave them hanging, because the Note-off is transformed with the new map.
+ *
+ * @author K.Shoji
+ */
+public final class MidiMessageTransformer {
+    /**
+     * The result of {@link #transform(int, int, int)}: the message has been dropped
+     */
+    public static final int DROPPED = -1;
+
+    // -1 for dropped
+    private volatile byte[] noteMap = createIdentityTable(128);
+    private volatile byte[] velocityCurve = createIdentityTable(128);
+    private volatile byte[] channelMap = createIdentityTable(16);
+    // -1 for dropped
+    private volatile byte[] controlMap = createIdentityTable(128);
+
+    /**
+     * Creates the table without transformation
+     *
+     * @param length the length of table
+     * @return the table
+     */
+    @NonNull
+    private static byte[] createIdentityTable(int length) {
+        final byte[] table = new byte[length];
+        for (int i = 0; i < length; i++) {
+            table[i] = (byte) i;
+        }
+        return table;
+    }
+
+    /**
+     * Transposes the notes, applied after the current note map
+     *
+     * @param semitones the amount of transposition, the notes out of range 0-127 will be dropped
+     */
+    public synchronized void transpose(int semitones) {
+        final byte[] table = noteMap.clone();
+        for (int i = 0; i < table.length; i++) {
+            if (table[i] >= 0) {
+                final int note = table[i] + semitones;
+                table[i] = (byte) (note < 0 || note > 127 ? -1 : note);
+            }
+        }
+        noteMap = table;
+    }
+
+    /**
+     * Sets the mapping of the note, for Note-on, Note-off and Polyphonic Aftertouch
+     *
+     * @param note the received(or sending) note 0-127
+     * @param mappedNote the transformed note 0-127, -1 to drop the messages
+     * @throws IllegalArgumentException if the note is out of range
+     */
+    public synchronized void setNoteMap(int note, int mappedNote) throws IllegalArgumentException {
+        if (note < 0 || note > 127 || mappedNote < -1 || mappedNote > 127) {
+            throw new IllegalArgumentException("Invalid note: " + note + " -> " + mappedNote);
+        }
+
+        final byte[] table = noteMap.clone();
+        table[note] = (byte) mappedNote;
+        noteMap = table;
+    }
+
+    /**
+     * Sets the velocity curve of Note-on
+     *
+     * @param curve 128 velocities indexed by the original velocity, the values are clamped into 1-127(the velocity 0 is kept as Note-off)
+     * @throws IllegalArgumentException if the length of curve is not 128
+     */
+    public synchronized void setVelocityCurve(@NonNull int[] curve) throws IllegalArgumentException {
+        if (curve.length != 128) {
+            throw new IllegalArgumentException("The length of curve must be 128: " + curve.length);
+        }
+
+        final byte[] table = new byte[128];
+        for (int i = 1; i < 128; i++) {
+            table[i] = (byte) Math.max(1, Math.min(curve[i], 127));
+        }
+        velocityCurve = table;
+    }
+
+    /**
+     * Sets the velocity curve of Note-on, as the power function: 127 * (velocity / 127) ^ exponent
+     *
+     * @param exponent less than 1.0 for the softer touch, more than 1.0 for the harder touch
+     * @throws IllegalArgumentException if the exponent is not positive
+     */
+    public void setVelocityCurve(double exponent) throws IllegalArgumentException {
+        if (!(exponent > 0)) {
+            throw new IllegalArgumentException("exponent must be positive: " + exponent);
+        }
+
+        final int[] curve = new int[128];
+        for (int i = 1; i < 128; i++) {
+            curve[i] = (int) Math.round(127 * Math.pow(i / 127.0, exponent));
+        }
+        setVelocityCurve(curve);
+    }
+
+    /**
+     * Sets the mapping of the channel, for all channel messages
+     *
+     * @param channel the received(or sending) channel 0-15
+     * @param mappedChannel the transformed channel 0-15
+     * @throws IllegalArgumentException if the channel is out of range
+     */
+    public synchronized void setChannelMap(int channel, int mappedChannel) throws IllegalArgumentException {
+        if (channel < 0 || channel > 15 || mappedChannel < 0 || mappedChannel > 15) {
+            throw new IllegalArgumentException("Invalid channel: " + channel + " -> " + mappedChannel);
+        }
+
+        final byte[] table = channelMap.clone();
+        table[channel] = (byte) mappedChannel;
+        channelMap = table;
+    }
+
+    /**
+     * Sets the mapping of the control function, for Control Change
+     *
+     * @param function the received(or sending) control function 0-127
+     * @param mappedFunction the transformed control function 0-127, -1 to drop the messages
+     * @throws IllegalArgumentException if the function is out of range
+     */
+    public synchronized void setControlChangeMap(int function, int mappedFunction) throws IllegalArgumentException {
+        if (function < 0 || function > 127 || mappedFunction < -1 || mappedFunction > 127) {
+            throw new IllegalArgumentException("Invalid control function: " + function + " -> " + mappedFunction);
+        }
+
+        final byte[] table = controlMap.clone();
+        table[function] = (byte) mappedFunction;
+        controlMap = table;
+    }
+
+    /**
+     * Removes all transformations
+     */
+    public synchronized void reset() {
+        noteMap = createIdentityTable(128);
+        velocityCurve = createIdentityTable(128);
+        channelMap = createIdentityTable(16);
+        controlMap = createIdentityTable(128);
+    }
+
+    /**
+     * Composes the transformers into one, the tables are composed at once so the chain costs the same as a single transformer
+     *
+     * @param next the transformer applied after this transformer
+     * @return the new transformer
+     */
+    @NonNull
+    public MidiMessageTransformer andThen(@NonNull MidiMessageTransformer next) {
+        final MidiMessageTransformer composed = new MidiMessageTransformer();
+        composed.noteMap = composeTables(noteMap, next.noteMap);
+        composed.velocityCurve = composeTables(velocityCurve, next.velocityCurve);
+        composed.channelMap = composeTables(channelMap, next.channelMap);
+        composed.controlMap = composeTables(controlMap, next.controlMap);
+        return composed;
+    }
+
+    /**
+     * Composes the lookup tables
+     *
+     * @param first the table applied first
+     * @param second the table applied second
+     * @return the composed table, -1 is kept as dropped
+     */
+    @NonNull
+    private static byte[] composeTables(@NonNull byte[] first, @NonNull byte[] second) {
+        final byte[] table = new byte[first.length];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = first[i] < 0 ? -1 : second[first[i]];
+        }
+        return table;
+    }
+
+    /**
+     * Transforms the channel message
+     *
+     * @param status the status byte: 0x80 - 0xEF, the other messages are returned as is
+     * @param data1 the first data byte
+     * @param data2 the second data byte, 0 if not used
+     * @return the transformed message packed as (status << 16) | (data1 << 8) | data2, or {@link #DROPPED}
+     */
+    public int transform(int status, int data1, int data2) {
+        if (status < 0x80 || status >= 0xf0) {
+            return ((status & 0xff) << 16) | ((data1 & 0x7f) << 8) | (data2 & 0x7f);
+        }
+
+        final int type = status & 0xf0;
+        switch (type) {
+            case 0x90:
+                if (data2 != 0) {
+                    data2 = velocityCurve[data2 & 0x7f];
+                }
+                // fall through
+            case 0x80:
+            case 0xa0:
+                data1 = noteMap[data1 & 0x7f];
+                break;
+            case 0xb0:
+                data1 = controlMap[data1 & 0x7f];
+                break;
+            default:
+                break;
+        }
+
+        if (data1 < 0) {
+            return DROPPED;
+        }
+        return ((type | channelMap[status & 0xf]) << 16) | (data1 << 8) | (data2 & 0x7f);
+    }
+}
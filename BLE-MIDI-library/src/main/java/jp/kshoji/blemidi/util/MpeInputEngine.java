@@ -0,0 +1,562 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+import jp.kshoji.blemidi.listener.OnMpeNoteListener;
+
+/**
+ * MPE(MIDI Polyphonic Expression) receiver<br />
+ * Set to {@link jp.kshoji.blemidi.device.MidiInputDevice#setOnMidiInputEventListener(OnMidiInputEventListener)} of one device.
+ * The zones are configured with MPE Configuration Message(RPN 6), and the pitch bend, pressure and timbre(CC74) of the member channels
+ * are mapped to the sounding notes. The expression changes are coalesced, and notified at most once per the control period for each note.<br />
+ * The messages not consumed as MPE(the manager channels, the channels out of the zones, and the system messages) are passed to
+ * the listener set with {@link #setOnMidiInputEventListener(OnMidiInputEventListener)}.
+ *
+ * @author K.Shoji
+ */
+public final class MpeInputEngine implements OnMidiInputEventListener {
+    private static final int ZONE_NONE = 0;
+    private static final int ZONE_LOWER = 1;
+    private static final int ZONE_UPPER = 2;
+    private static final int LOWER_ZONE_MANAGER_CHANNEL = 0;
+    private static final int UPPER_ZONE_MANAGER_CHANNEL = 15;
+    private static final int MAX_MEMBER_CHANNELS = 15;
+
+    private static final int RPN_PITCH_BEND_SENSITIVITY = 0;
+    private static final int RPN_MPE_CONFIGURATION = 6;
+    private static final int CONTROL_TIMBRE = 74;
+    private static final float DEFAULT_MEMBER_PITCH_BEND_RANGE = 48;
+    private static final float DEFAULT_MANAGER_PITCH_BEND_RANGE = 2;
+    private static final int PITCH_BEND_CENTER = 8192;
+    private static final int TIMBRE_CENTER = 64;
+    private static final int MAX_CONTROL_RATE = 1000;
+
+    private final OnMpeNoteListener mpeNoteListener;
+    private final long controlPeriodMillis;
+    private volatile OnMidiInputEventListener midiInputEventListener = null;
+
+    private final Object stateLock = new Object();
+    private MidiInputDevice lastSender = null;
+
+    // zone configurations, indexed by ZONE_*
+    private final int[] zoneMemberChannelCounts = new int[3];
+    private final float[] memberPitchBendRanges = new float[3];
+    private final float[] managerPitchBendRanges = new float[3];
+    private final int[] channelZones = new int[16];
+
+    // expression of each channel
+    private final int[] pitchBends = new int[16];
+    private final int[] pressures = new int[16];
+    private final int[] timbres = new int[16];
+    private final boolean[] isExpressionChanged = new boolean[16];
+    private boolean hasExpressionChanged = false;
+
+    // sounding notes, 128 bits for each channel
+    private final long[] activeNotes = new long[32];
+
+    // copied from the states, to notify outside of the lock
+    private final boolean[] notifyingChannels = new boolean[16];
+    private final float[] notifyingPitchBends = new float[16];
+    private final int[] notifyingPressures = new int[16];
+    private final int[] notifyingTimbres = new int[16];
+    private final long[] notifyingNotes = new long[32];
+
+    private volatile boolean isRunning = true;
+    private final Thread controlThread;
+
+    /**
+     * Constructor
+     *
+     * @param mpeNoteListener the listener for MPE notes
+     * @param controlRate the maximum frequency of expression notification for each note, in Hz: 1-1000
+     * @throws IllegalArgumentException if the control rate is out of range
+     */
+    public MpeInputEngine(@NonNull OnMpeNoteListener mpeNoteListener, int controlRate) throws IllegalArgumentException {
+        if (controlRate < 1 || controlRate > MAX_CONTROL_RATE) {
+            throw new IllegalArgumentException("Control rate out of range: " + controlRate);
+        }
+
+        this.mpeNoteListener = mpeNoteListener;
+        controlPeriodMillis = 1000 / controlRate;
+
+        Arrays.fill(memberPitchBendRanges, DEFAULT_MEMBER_PITCH_BEND_RANGE);
+        Arrays.fill(managerPitchBendRanges, DEFAULT_MANAGER_PITCH_BEND_RANGE);
+        Arrays.fill(pitchBends, PITCH_BEND_CENTER);
+        Arrays.fill(timbres, TIMBRE_CENTER);
+
+        controlThread = new Thread(new ControlRunnable(), "MpeControlThread");
+        controlThread.start();
+    }
+
+    /**
+     * Sets the listener for the messages not consumed as MPE
+     *
+     * @param midiInputEventListener the listener
+     */
+    public void setOnMidiInputEventListener(@Nullable OnMidiInputEventListener midiInputEventListener) {
+        this.midiInputEventListener = midiInputEventListener;
+    }
+
+    /**
+     * Obtains the number of member channels of the zone
+     *
+     * @param isLowerZone true if the Lower Zone, false if the Upper Zone
+     * @return the number of member channels, 0 if the zone is disabled
+     */
+    public int getMemberChannelCount(boolean isLowerZone) {
+        synchronized (stateLock) {
+            return zoneMemberChannelCounts[isLowerZone ? ZONE_LOWER : ZONE_UPPER];
+        }
+    }
+
+    /**
+     * Stops the internal Thread
+     */
+    public void stop() {
+        isRunning = false;
+        controlThread.interrupt();
+    }
+
+    /**
+     * Configures the zone, must be called with stateLock<br />
+     * The notes on the channels leaving the zones are forgotten, and returned to be released.
+     *
+     * @param zone ZONE_LOWER or ZONE_UPPER
+     * @param memberChannelCount 0-15
+     * @param releasedNotes the notes on the channels leaving the zones, 128 bits for each channel
+     * @return true if any note has been released
+     */
+    private boolean configureZone(int zone, int memberChannelCount, @NonNull long[] releasedNotes) {
+        final int otherZone = zone == ZONE_LOWER ? ZONE_UPPER : ZONE_LOWER;
+        zoneMemberChannelCounts[zone] = Math.min(memberChannelCount, MAX_MEMBER_CHANNELS);
+        if (zoneMemberChannelCounts[zone] + zoneMemberChannelCounts[otherZone] > MAX_MEMBER_CHANNELS - 1) {
+            // the zones must not overlap: shrink the other zone
+            zoneMemberChannelCounts[otherZone] = Math.max(0, MAX_MEMBER_CHANNELS - 1 - zoneMemberChannelCounts[zone]);
+        }
+
+        memberPitchBendRanges[zone] = DEFAULT_MEMBER_PITCH_BEND_RANGE;
+        managerPitchBendRanges[zone] = DEFAULT_MANAGER_PITCH_BEND_RANGE;
+
+        final int[] lastChannelZones = Arrays.copyOf(channelZones, 16);
+        Arrays.fill(channelZones, ZONE_NONE);
+        for (int i = 0; i < zoneMemberChannelCounts[ZONE_LOWER]; i++) {
+            channelZones[LOWER_ZONE_MANAGER_CHANNEL + 1 + i] = ZONE_LOWER;
+        }
+        for (int i = 0; i < zoneMemberChannelCounts[ZONE_UPPER]; i++) {
+            channelZones[UPPER_ZONE_MANAGER_CHANNEL - 1 - i] = ZONE_UPPER;
+        }
+
+        boolean hasReleasedNotes = false;
+        for (int channel = 0; channel < 16; channel++) {
+            if (lastChannelZones[channel] == ZONE_NONE || lastChannelZones[channel] == channelZones[channel]) {
+                continue;
+            }
+
+            // the channel has left the zone: the later Note Off will not be treated as MPE
+            releasedNotes[channel * 2] = activeNotes[channel * 2];
+            releasedNotes[channel * 2 + 1] = activeNotes[channel * 2 + 1];
+            hasReleasedNotes |= (activeNotes[channel * 2] | activeNotes[channel * 2 + 1]) != 0;
+            activeNotes[channel * 2] = 0;
+            activeNotes[channel * 2 + 1] = 0;
+            pitchBends[channel] = PITCH_BEND_CENTER;
+            pressures[channel] = 0;
+            timbres[channel] = TIMBRE_CENTER;
+            isExpressionChanged[channel] = false;
+        }
+        return hasReleasedNotes;
+    }
+
+    /**
+     * Checks if the channel is the manager channel of the enabled zone
+     *
+     * @param channel 0-15
+     * @return ZONE_LOWER or ZONE_UPPER, ZONE_NONE if not a manager channel
+     */
+    private int getManagedZone(int channel) {
+        if (channel == LOWER_ZONE_MANAGER_CHANNEL && zoneMemberChannelCounts[ZONE_LOWER] > 0) {
+            return ZONE_LOWER;
+        }
+        if (channel == UPPER_ZONE_MANAGER_CHANNEL && zoneMemberChannelCounts[ZONE_UPPER] > 0) {
+            return ZONE_UPPER;
+        }
+        return ZONE_NONE;
+    }
+
+    /**
+     * Calculates the pitch bend of the member channel, must be called with stateLock
+     *
+     * @param channel the member channel
+     * @return the pitch bend in semitones
+     */
+    private float calculatePitchBend(int channel) {
+        final int zone = channelZones[channel];
+        final int managerChannel = zone == ZONE_LOWER ? LOWER_ZONE_MANAGER_CHANNEL : UPPER_ZONE_MANAGER_CHANNEL;
+        return (pitchBends[channel] - PITCH_BEND_CENTER) * memberPitchBendRanges[zone] / PITCH_BEND_CENTER
+                + (pitchBends[managerChannel] - PITCH_BEND_CENTER) * managerPitchBendRanges[zone] / PITCH_BEND_CENTER;
+    }
+
+    /**
+     * Marks the expression of the channel has been changed, must be called with stateLock
+     *
+     * @param channel the member channel
+     */
+    private void markExpressionChanged(int channel) {
+        isExpressionChanged[channel] = true;
+        hasExpressionChanged = true;
+    }
+
+    /**
+     * Notifies the coalesced expression changes of the sounding notes
+     */
+    private void notifyExpressionChanges() {
+        final MidiInputDevice sender;
+        synchronized (stateLock) {
+            if (!hasExpressionChanged || lastSender == null) {
+                return;
+            }
+            hasExpressionChanged = false;
+            sender = lastSender;
+
+            for (int channel = 0; channel < 16; channel++) {
+                notifyingChannels[channel] = isExpressionChanged[channel] && channelZones[channel] != ZONE_NONE;
+                isExpressionChanged[channel] = false;
+                if (notifyingChannels[channel]) {
+                    notifyingPitchBends[channel] = calculatePitchBend(channel);
+                    notifyingPressures[channel] = pressures[channel];
+                    notifyingTimbres[channel] = timbres[channel];
+                    notifyingNotes[channel * 2] = activeNotes[channel * 2];
+                    notifyingNotes[channel * 2 + 1] = activeNotes[channel * 2 + 1];
+                }
+            }
+        }
+
+        for (int channel = 0; channel < 16; channel++) {
+            if (!notifyingChannels[channel]) {
+                continue;
+            }
+            for (int i = 0; i < 2; i++) {
+                long notes = notifyingNotes[channel * 2 + i];
+                while (notes != 0) {
+                    final int bit = Long.numberOfTrailingZeros(notes);
+                    notes &= notes - 1;
+                    mpeNoteListener.onMpeNoteExpression(sender, channel, i * 64 + bit, notifyingPitchBends[channel], notifyingPressures[channel], notifyingTimbres[channel]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runnable for notifying expression changes at the control rate
+     */
+    private class ControlRunnable implements Runnable {
+        @Override
+        public void run() {
+            while (isRunning) {
+                try {
+                    Thread.sleep(controlPeriodMillis);
+                } catch (InterruptedException ignored) {
+                }
+
+                notifyExpressionChanges();
+            }
+        }
+    }
+
+    @Override
+    public void onMidiNoteOn(@NonNull MidiInputDevice sender, int channel, int note, int velocity) {
+        final float pitchBend;
+        final int pressure;
+        final int timbre;
+        synchronized (stateLock) {
+            lastSender = sender;
+            if (channelZones[channel] != ZONE_NONE) {
+                activeNotes[channel * 2 + (note >> 6)] |= 1L << (note & 0x3f);
+                pitchBend = calculatePitchBend(channel);
+                pressure = pressures[channel];
+                timbre = timbres[channel];
+            } else {
+                pitchBend = Float.NaN;
+                pressure = 0;
+                timbre = 0;
+            }
+        }
+
+        if (Float.isNaN(pitchBend)) {
+            OnMidiInputEventListener listener = midiInputEventListener;
+            if (listener != null) {
+                listener.onMidiNoteOn(sender, channel, note, velocity);
+            }
+            return;
+        }
+        mpeNoteListener.onMpeNoteOn(sender, channel, note, velocity, pitchBend, pressure, timbre);
+    }
+
+    @Override
+    public void onMidiNoteOff(@NonNull MidiInputDevice sender, int channel, int note, int velocity) {
+        final boolean isMember;
+        synchronized (stateLock) {
+            lastSender = sender;
+            isMember = channelZones[channel] != ZONE_NONE;
+            activeNotes[channel * 2 + (note >> 6)] &= ~(1L << (note & 0x3f));
+        }
+
+        if (isMember) {
+            mpeNoteListener.onMpeNoteOff(sender, channel, note, velocity);
+        } else {
+            OnMidiInputEventListener listener = midiInputEventListener;
+            if (listener != null) {
+                listener.onMidiNoteOff(sender, channel, note, velocity);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiPitchWheel(@NonNull MidiInputDevice sender, int channel, int amount) {
+        synchronized (stateLock) {
+            lastSender = sender;
+            pitchBends[channel] = amount;
+            if (channelZones[channel] != ZONE_NONE) {
+                markExpressionChanged(channel);
+                return;
+            }
+
+            // the pitch bend of the manager channel applies to all member channels
+            final int zone = getManagedZone(channel);
+            if (zone != ZONE_NONE) {
+                for (int i = 0; i < 16; i++) {
+                    if (channelZones[i] == zone) {
+                        markExpressionChanged(i);
+                    }
+                }
+            }
+        }
+
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiPitchWheel(sender, channel, amount);
+        }
+    }
+
+    @Override
+    public void onMidiChannelAftertouch(@NonNull MidiInputDevice sender, int channel, int pressure) {
+        synchronized (stateLock) {
+            lastSender = sender;
+            if (channelZones[channel] != ZONE_NONE) {
+                pressures[channel] = pressure;
+                markExpressionChanged(channel);
+                return;
+            }
+        }
+
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiChannelAftertouch(sender, channel, pressure);
+        }
+    }
+
+    @Override
+    public void onMidiPolyphonicAftertouch(@NonNull MidiInputDevice sender, int channel, int note, int pressure) {
+        synchronized (stateLock) {
+            lastSender = sender;
+            if (channelZones[channel] != ZONE_NONE) {
+                // the member channel has one note usually: same as the channel pressure
+                pressures[channel] = pressure;
+                markExpressionChanged(channel);
+                return;
+            }
+        }
+
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiPolyphonicAftertouch(sender, channel, note, pressure);
+        }
+    }
+
+    @Override
+    public void onMidiControlChange(@NonNull MidiInputDevice sender, int channel, int function, int value) {
+        if (function == CONTROL_TIMBRE) {
+            synchronized (stateLock) {
+                lastSender = sender;
+                if (channelZones[channel] != ZONE_NONE) {
+                    timbres[channel] = value;
+                    markExpressionChanged(channel);
+                    return;
+                }
+            }
+        }
+
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiControlChange(sender, channel, function, value);
+        }
+    }
+
+    @Override
+    public void onRPNMessage(@NonNull MidiInputDevice sender, int channel, int function, int value) {
+        int changedZone = ZONE_NONE;
+        int lowerZoneMemberChannelCount = 0;
+        int upperZoneMemberChannelCount = 0;
+        long[] releasedNotes = null;
+        synchronized (stateLock) {
+            lastSender = sender;
+            if (function == RPN_MPE_CONFIGURATION) {
+                if (channel == LOWER_ZONE_MANAGER_CHANNEL) {
+                    changedZone = ZONE_LOWER;
+                } else if (channel == UPPER_ZONE_MANAGER_CHANNEL) {
+                    changedZone = ZONE_UPPER;
+                }
+                if (changedZone != ZONE_NONE) {
+                    releasedNotes = new long[32];
+                    if (!configureZone(changedZone, value >> 7, releasedNotes)) {
+                        releasedNotes = null;
+                    }
+                    lowerZoneMemberChannelCount = zoneMemberChannelCounts[ZONE_LOWER];
+                    upperZoneMemberChannelCount = zoneMemberChannelCounts[ZONE_UPPER];
+                }
+            } else if (function == RPN_PITCH_BEND_SENSITIVITY) {
+                // MSB: semitones, LSB: cents
+                final float range = (value >> 7) + (value & 0x7f) / 100f;
+                if (channelZones[channel] != ZONE_NONE) {
+                    memberPitchBendRanges[channelZones[channel]] = range;
+                } else {
+                    final int zone = getManagedZone(channel);
+                    if (zone != ZONE_NONE) {
+                        managerPitchBendRanges[zone] = range;
+                    }
+                }
+            }
+        }
+
+        if (releasedNotes != null) {
+            for (int releasedChannel = 0; releasedChannel < 16; releasedChannel++) {
+                for (int i = 0; i < 2; i++) {
+                    long notes = releasedNotes[releasedChannel * 2 + i];
+                    while (notes != 0) {
+                        final int bit = Long.numberOfTrailingZeros(notes);
+                        notes &= notes - 1;
+                        mpeNoteListener.onMpeNoteOff(sender, releasedChannel, i * 64 + bit, 0);
+                    }
+                }
+            }
+        }
+
+        if (changedZone != ZONE_NONE) {
+            mpeNoteListener.onMpeZoneChanged(sender, true, lowerZoneMemberChannelCount);
+            mpeNoteListener.onMpeZoneChanged(sender, false, upperZoneMemberChannelCount);
+        }
+
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onRPNMessage(sender, channel, function, value);
+        }
+    }
+
+    @Override
+    public void onMidiSystemExclusive(@NonNull MidiInputDevice sender, @NonNull byte[] systemExclusive) {
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiSystemExclusive(sender, systemExclusive);
+        }
+    }
+
+    @Override
+    public void onMidiProgramChange(@NonNull MidiInputDevice sender, int channel, int program) {
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiProgramChange(sender, channel, program);
+        }
+    }
+
+    @Override
+    public void onMidiTimeCodeQuarterFrame(@NonNull MidiInputDevice sender, int timing) {
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiTimeCodeQuarterFrame(sender, timing);
+        }
+    }
+
+    @Override
+    public void onMidiSongSelect(@NonNull MidiInputDevice sender, int song) {
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiSongSelect(sender, song);
+        }
+    }
+
+    @Override
+    public void onMidiSongPositionPointer(@NonNull MidiInputDevice sender, int position) {
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiSongPositionPointer(sender, position);
+        }
+    }
+
+    @Override
+    public void onMidiTuneRequest(@NonNull MidiInputDevice sender) {
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiTuneRequest(sender);
+        }
+    }
+
+    @Override
+    public void onMidiTimingClock(@NonNull MidiInputDevice sender) {
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiTimingClock(sender);
+        }
+    }
+
+    @Override
+    public void onMidiStart(@NonNull MidiInputDevice sender) {
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiStart(sender);
+        }
+    }
+
+    @Override
+    public void onMidiContinue(@NonNull MidiInputDevice sender) {
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiContinue(sender);
+        }
+    }
+
+    @Override
+    public void onMidiStop(@NonNull MidiInputDevice sender) {
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiStop(sender);
+        }
+    }
+
+    @Override
+    public void onMidiActiveSensing(@NonNull MidiInputDevice sender) {
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiActiveSensing(sender);
+        }
+    }
+
+    @Override
+    public void onMidiReset(@NonNull MidiInputDevice sender) {
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onMidiReset(sender);
+        }
+    }
+
+    @Override
+    public void onNRPNMessage(@NonNull MidiInputDevice sender, int channel, int function, int value) {
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            listener.onNRPNMessage(sender, channel, function, value);
+        }
+    }
+}
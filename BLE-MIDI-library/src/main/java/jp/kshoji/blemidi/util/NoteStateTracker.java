@@ -0,0 +1,99 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Sounding notes of one device<br />
+ * The status of 16 channels x 128 notes is kept as bitsets, updated in constant time for each note message.
+ *
+ * @author K.Shoji
+ */
+public final class NoteStateTracker {
+    /**
+     * The length of the snapshot array: 2 longs(128 bits) for each channel
+     */
+    public static final int SNAPSHOT_LENGTH = 16 * 2;
+
+    private final long[] noteBits = new long[SNAPSHOT_LENGTH];
+    private int soundingNoteCount = 0;
+
+    /**
+     * Note-on received
+     *
+     * @param channel 0-15
+     * @param note 0-127
+     */
+    synchronized void noteOn(int channel, int note) {
+        final int index = ((channel & 0xf) << 1) | ((note >> 6) & 1);
+        final long bit = 1L << (note & 0x3f);
+        if ((noteBits[index] & bit) == 0) {
+            noteBits[index] |= bit;
+            soundingNoteCount++;
+        }
+    }
+
+    /**
+     * Note-off received
+     *
+     * @param channel 0-15
+     * @param note 0-127
+     */
+    synchronized void noteOff(int channel, int note) {
+        final int index = ((channel & 0xf) << 1) | ((note >> 6) & 1);
+        final long bit = 1L << (note & 0x3f);
+        if ((noteBits[index] & bit) != 0) {
+            noteBits[index] &= ~bit;
+            soundingNoteCount--;
+        }
+    }
+
+    /**
+     * Copies the status into the snapshot, and clears all notes
+     *
+     * @param snapshot the array to store, the length must be {@link #SNAPSHOT_LENGTH} at least
+     * @return the number of notes were sounding
+     */
+    synchronized int drainTo(@NonNull long[] snapshot) {
+        final int count = soundingNoteCount;
+        System.arraycopy(noteBits, 0, snapshot, 0, SNAPSHOT_LENGTH);
+        for (int i = 0; i < SNAPSHOT_LENGTH; i++) {
+            noteBits[i] = 0;
+        }
+        soundingNoteCount = 0;
+        return count;
+    }
+
+    /**
+     * Checks if the note is sounding
+     *
+     * @param channel 0-15
+     * @param note 0-127
+     * @return true if Note-on has been received, and Note-off hasn't been received
+     */
+    public synchronized boolean isNoteOn(int channel, int note) {
+        return (noteBits[((channel & 0xf) << 1) | ((note >> 6) & 1)] & (1L << (note & 0x3f))) != 0;
+    }
+
+    /**
+     * Obtains the number of sounding notes
+     *
+     * @return the number of notes
+     */
+    public synchronized int getSoundingNoteCount() {
+        return soundingNoteCount;
+    }
+
+    /**
+     * Copies the status of all notes<br />
+     * The note N of the channel C is sounding if the bit (N % 64) of snapshot[C * 2 + N / 64] is set.
+     *
+     * @param snapshot the array to store, the length must be {@link #SNAPSHOT_LENGTH} at least
+     * @throws IllegalArgumentException if the array is too short
+     */
+    public synchronized void getSnapshot(@NonNull long[] snapshot) throws IllegalArgumentException {
+        if (snapshot.length < SNAPSHOT_LENGTH) {
+            throw new IllegalArgumentException("snapshot length must be " + SNAPSHOT_LENGTH + " at least: " + snapshot.length);
+        }
+        System.arraycopy(noteBits, 0, snapshot, 0, SNAPSHOT_LENGTH);
+    }
+}
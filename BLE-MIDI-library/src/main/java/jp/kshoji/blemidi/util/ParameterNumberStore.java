@@ -0,0 +1,105 @@
+package jp.kshoji.blemidi.util;
+
+/**
+ * Values of RPN/NRPN parameters, for each channel<br />
+ * The 14bits values are stored in two-level tables: pages of 128 parameters are allocated when the parameter MSB is used first,
+ * so the lookup is constant time without allocating 16384 entries for every channel.<br />
+ * Not synchronized: written on the parsing thread, reading from other threads may obtain a slightly old value.
+ *
+ * @author K.Shoji
+ */
+final class ParameterNumberStore {
+    static final int TYPE_RPN = 0;
+    static final int TYPE_NRPN = 1;
+
+    private static final int CHANNELS = 16;
+    private static final int TYPES = 2;
+    private static final int PAGES = 128;
+    private static final int PAGE_SIZE = 128;
+    private static final int MAX_VALUE = 0x3fff;
+
+    private final short[][] pages = new short[CHANNELS * TYPES * PAGES][];
+
+    /**
+     * Obtains the page for the parameter
+     *
+     * @param channel 0-15
+     * @param type {@link #TYPE_RPN} or {@link #TYPE_NRPN}
+     * @param function 14bits parameter number
+     * @param allocate true to allocate the page if not exists
+     * @return the page, null if not allocated
+     */
+    private short[] getPage(int channel, int type, int function, boolean allocate) {
+        final int index = ((channel & 0xf) * TYPES + type) * PAGES + ((function >> 7) & 0x7f);
+        short[] page = pages[index];
+        if (page == null && allocate) {
+            page = new short[PAGE_SIZE];
+            pages[index] = page;
+        }
+        return page;
+    }
+
+    /**
+     * Obtains the value of the parameter
+     *
+     * @param channel 0-15
+     * @param type {@link #TYPE_RPN} or {@link #TYPE_NRPN}
+     * @param function 14bits parameter number
+     * @return 14bits value, 0 if not received yet
+     */
+    int get(int channel, int type, int function) {
+        final short[] page = getPage(channel, type, function, false);
+        if (page == null) {
+            return 0;
+        }
+        return page[function & 0x7f];
+    }
+
+    /**
+     * Updates the MSB of the value(Data Entry MSB)
+     *
+     * @param channel 0-15
+     * @param type {@link #TYPE_RPN} or {@link #TYPE_NRPN}
+     * @param function 14bits parameter number
+     * @param msb 7bits value
+     * @return updated 14bits value
+     */
+    int setMsb(int channel, int type, int function, int msb) {
+        final short[] page = getPage(channel, type, function, true);
+        final int value = ((msb & 0x7f) << 7) | (page[function & 0x7f] & 0x7f);
+        page[function & 0x7f] = (short) value;
+        return value;
+    }
+
+    /**
+     * Updates the LSB of the value(Data Entry LSB)
+     *
+     * @param channel 0-15
+     * @param type {@link #TYPE_RPN} or {@link #TYPE_NRPN}
+     * @param function 14bits parameter number
+     * @param lsb 7bits value
+     * @return updated 14bits value
+     */
+    int setLsb(int channel, int type, int function, int lsb) {
+        final short[] page = getPage(channel, type, function, true);
+        final int value = (page[function & 0x7f] & (0x7f << 7)) | (lsb & 0x7f);
+        page[function & 0x7f] = (short) value;
+        return value;
+    }
+
+    /**
+     * Adds the amount to the value(Data Increment / Data Decrement), the result is clamped into 0-16383
+     *
+     * @param channel 0-15
+     * @param type {@link #TYPE_RPN} or {@link #TYPE_NRPN}
+     * @param function 14bits parameter number
+     * @param amount the amount to add, negative value to decrement
+     * @return updated 14bits value
+     */
+    int add(int channel, int type, int function, int amount) {
+        final short[] page = getPage(channel, type, function, true);
+        final int value = Math.max(0, Math.min(page[function & 0x7f] + amount, MAX_VALUE));
+        page[function & 0x7f] = (short) value;
+        return value;
+    }
+}
@@ -1,26 +1,95 @@
 package jp.kshoji.blemidi.util;
 
-import java.io.ByteArrayOutputStream;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
 
 /**
- * {@link java.io.ByteArrayOutputStream} that can reset without memory leak.
- * 
+ * Growable byte buffer that can reset without memory leak.<br />
+ * Unlike {@link java.io.ByteArrayOutputStream}, this class is not synchronized, and keeps the grown buffer on {@link #reset()} up to the retain limit.
+ * The instance must be guarded by the owner when shared between threads.
+ *
  * @author K.Shoji
  */
-public final class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
-	private static final int DEFAULT_BUFFER_LIMIT = 1024;
-	private final byte[] fixedSizeBuffer;
-
-	/**
-	 * Construct instance
-	 * 
-	 * @param size the initial size of the stream
-	 */
-	public ReusableByteArrayOutputStream(int size) {
-		super(size);
-		fixedSizeBuffer = new byte[size];
-		this.buf = fixedSizeBuffer;
-	}
+public final class ReusableByteArrayOutputStream extends OutputStream {
+    private static final int DEFAULT_BUFFER_LIMIT = 1024;
+    private static final int DEFAULT_RETAIN_LIMIT = 64 * 1024;
+
+    private final byte[] fixedSizeBuffer;
+    private final int retainLimit;
+    private byte[] buf;
+    private int count;
+
+    /**
+     * Construct instance
+     *
+     * @param size the initial size of the stream
+     * @param retainLimit the maximum buffer size kept on {@link #reset()}, larger buffer will be released
+     */
+    public ReusableByteArrayOutputStream(int size, int retainLimit) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative initial size: " + size);
+        }
+        fixedSizeBuffer = new byte[size];
+        buf = fixedSizeBuffer;
+        this.retainLimit = Math.max(size, retainLimit);
+    }
+
+    /**
+     * Construct instance
+     *
+     * @param size the initial size of the stream
+     */
+    public ReusableByteArrayOutputStream(int size) {
+        this(size, Math.max(size, DEFAULT_RETAIN_LIMIT));
+    }
+
+    /**
+     * Construct default instance, initial buffer size is 1024 bytes.
+     */
+    public ReusableByteArrayOutputStream() {
+        this(DEFAULT_BUFFER_LIMIT);
+    }
+
+    /**
+     * Ensures the buffer can store the specified length
+     *
+     * @param minCapacity the required capacity
+     */
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity > buf.length) {
+            int newCapacity = Math.max(buf.length << 1, minCapacity);
+            buf = Arrays.copyOf(buf, Math.max(newCapacity, 16));
+        }
+    }
+
+    @Override
+    public void write(int oneByte) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) oneByte;
+    }
+
+    @Override
+    public void write(@NonNull byte[] buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(count + length);
+        System.arraycopy(buffer, offset, buf, count, length);
+        count += length;
+    }
+
+    /**
+     * Writes the whole contents of this stream to the specified stream
+     *
+     * @param out the destination
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTo(@NonNull OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
 
     /**
      * Replaces last written byte with the specified value
@@ -28,31 +97,56 @@ public final class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
      * @param oneByte the byte value
      * @return replaced value; -1 if {@link #size()} == 0
      */
-    public synchronized int replaceLastByte(int oneByte) {
+    public int replaceLastByte(int oneByte) {
         if (count > 0) {
             byte replaced = buf[count - 1];
             buf[count - 1] = (byte) oneByte;
             return replaced & 0xff;
         } else {
-            super.write(oneByte);
+            write(oneByte);
             return -1;
         }
     }
 
     /**
-	 * Construct default instance, maximum buffer size is 1024 bytes.
-	 */
-	public ReusableByteArrayOutputStream() {
-		this(DEFAULT_BUFFER_LIMIT);
-	}
+     * Obtains the backing array without copying.<br />
+     * Valid data is from index 0 to {@link #size()}, and the array may be replaced by the next write or {@link #reset()}.
+     *
+     * @return the backing array
+     */
+    @NonNull
+    public byte[] getBuffer() {
+        return buf;
+    }
 
-	@Override
-	public synchronized void reset() {
-		super.reset();
-		
-		// reset buffer size when the buffer has been extended
-		if (this.buf.length > fixedSizeBuffer.length) {
-			this.buf = fixedSizeBuffer;
-		}
-	}
+    /**
+     * Obtains the written length
+     *
+     * @return the number of valid bytes in the buffer
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Copies the written data into a new array
+     *
+     * @return the copy of the data
+     */
+    @NonNull
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * Discards the written data. The grown buffer is kept while it doesn't exceed the retain limit.
+     */
+    public void reset() {
+        count = 0;
+
+        // reset buffer size when the buffer has been extended too much
+        if (buf.length > retainLimit) {
+            buf = fixedSizeBuffer;
+        }
+    }
 }
@@ -0,0 +1,108 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiSystemExclusiveChunkListener;
+
+/**
+ * {@link jp.kshoji.blemidi.listener.OnMidiSystemExclusiveChunkListener} that writes received SysEx to the channel directly.<br />
+ * Set to {@link BleMidiParser#setSystemExclusiveChunkListener(OnMidiSystemExclusiveChunkListener, int)} to spool large dumps into a file.
+ *
+ * @author K.Shoji
+ */
+public class SystemExclusiveSpooler implements OnMidiSystemExclusiveChunkListener {
+    private final WritableByteChannel channel;
+
+    private boolean isSpooling = false;
+    private long messageStartPosition;
+    private long messageLength;
+    private IOException lastException = null;
+
+    /**
+     * Constructor
+     *
+     * @param channel the channel to write SysEx, if the channel is {@link java.nio.channels.FileChannel} overflowed message will be truncated from the file.
+     */
+    public SystemExclusiveSpooler(@NonNull WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void onMidiSystemExclusiveChunk(@NonNull MidiInputDevice sender, @NonNull byte[] chunk, boolean isLastChunk) {
+        try {
+            if (!isSpooling) {
+                isSpooling = true;
+                messageLength = 0;
+                if (channel instanceof FileChannel) {
+                    messageStartPosition = ((FileChannel) channel).position();
+                }
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            while (buffer.hasRemaining()) {
+                messageLength += channel.write(buffer);
+            }
+
+            if (isLastChunk) {
+                isSpooling = false;
+                onSystemExclusiveSpooled(sender, messageLength);
+            }
+        } catch (IOException e) {
+            isSpooling = false;
+            lastException = e;
+            onSpoolFailed(sender, e);
+        }
+    }
+
+    @Override
+    public void onMidiSystemExclusiveOverflow(@NonNull MidiInputDevice sender) {
+        if (isSpooling && channel instanceof FileChannel) {
+            try {
+                // drop the partial message
+                ((FileChannel) channel).truncate(messageStartPosition);
+                ((FileChannel) channel).position(messageStartPosition);
+            } catch (IOException e) {
+                lastException = e;
+                onSpoolFailed(sender, e);
+            }
+        }
+        isSpooling = false;
+    }
+
+    /**
+     * Called when a SysEx has been written to the channel
+     *
+     * @param sender the device sent the message
+     * @param length the length of the message in bytes
+     */
+    protected void onSystemExclusiveSpooled(@NonNull MidiInputDevice sender, long length) {
+        // do nothing by default
+    }
+
+    /**
+     * Called when writing to the channel has failed
+     *
+     * @param sender the device sent the message
+     * @param exception the exception
+     */
+    protected void onSpoolFailed(@NonNull MidiInputDevice sender, @NonNull IOException exception) {
+        // do nothing by default
+    }
+
+    /**
+     * Obtains the last exception occurred while writing
+     *
+     * @return null if no exception occurred
+     */
+    @Nullable
+    public IOException getLastException() {
+        return lastException;
+    }
+}